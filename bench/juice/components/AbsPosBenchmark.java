@@ -0,0 +1,82 @@
+package juice.components;
+
+import juice.types.Int2;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the cached getAbsPos() with walking up the parent chain on
+ * every call, which is what getAbsPos() used to do. No GL context is
+ * needed.
+ *
+ * Lives in the bench source root so it is not part of the library.
+ *
+ *  java juice.components.AbsPosBenchmark [depth] [iterations]
+ */
+final public class AbsPosBenchmark {
+    public static void main(String[] args) {
+        int depth      = args.length > 0 ? Integer.valueOf(args[0]) : 32;
+        int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 2000;
+
+        // A root with 16 chains of depth components each
+        var root   = new UIComponent();
+        var leaves = new ArrayList<UIComponent>();
+        for(int i=0; i<16; i++) {
+            UIComponent c = root;
+            for(int d=0; d<depth; d++) {
+                var child = new UIComponent().setRelPos(new Int2(i, d));
+                c.add(child);
+                c = child;
+            }
+            leaves.add(c);
+        }
+        var all = new ArrayList<UIComponent>();
+        collect(root, all);
+
+        System.out.println(String.format("%d components, depth %d", all.size(), depth));
+        System.out.println(String.format("%-24s %12s %14s", "", "ns/call", "bytes/call"));
+
+        for(int pass=0; pass<2; pass++) {
+            // first pass is warm up
+            boolean print = pass==1;
+            run("uncached", print, iterations, all, false, null);
+            run("cached", print, iterations, all, true, null);
+            run("cached, root moves", print, iterations, all, true, root);
+        }
+    }
+    private static void run(String name, boolean print, int iterations, List<UIComponent> all, boolean cached, UIComponent mover) {
+        var threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long sum    = 0;
+
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            if(mover!=null) mover.setRelPos(new Int2(i, i));
+            for(var c : all) {
+                var p = cached ? c.getAbsPos() : uncachedAbsPos(c);
+                sum += p.getX();
+            }
+        }
+        long nsecs = System.nanoTime() - start;
+        bytes      = threads.getThreadAllocatedBytes(thread) - bytes;
+
+        long calls = (long)iterations * all.size();
+        if(print) {
+            System.out.println(String.format("%-24s %12.2f %14.2f", name, (double)nsecs / calls, (double)bytes / calls));
+        }
+        if(sum==42) System.out.println();
+    }
+    private static Int2 uncachedAbsPos(UIComponent c) {
+        if(c.getParent()==null) return c.getRelPos();
+        return c.getRelPos().add(uncachedAbsPos(c.getParent()));
+    }
+    private static void collect(UIComponent c, List<UIComponent> list) {
+        list.add(c);
+        for(var child : c.childList()) {
+            collect(child, list);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package juice.graphics;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+
+/**
+ * Compares parsing the BMFont text files with reading the binary font
+ * cache. Only the glyph tables are loaded, not the page images, so no GL
+ * context is needed.
+ *
+ * Lives in the bench source root so it is not part of the library.
+ *
+ *  java juice.graphics.FontLoadBenchmark [directory] [iterations]
+ */
+final public class FontLoadBenchmark {
+    private interface Loader {
+        void load(Font font) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String directory = args.length > 0 ? args[0] : "./fonts/";
+        int iterations   = args.length > 1 ? Integer.valueOf(args[1]) : 200;
+        if(!directory.endsWith("/")) directory += "/";
+
+        var files = new File(directory).list((dir, name) -> name.endsWith(".fnt"));
+        if(files == null || files.length == 0) {
+            System.err.println("No fnt files in "+directory);
+            return;
+        }
+
+        System.out.println(String.format("%-20s %-6s %10s %12s %8s %9s", "Font", "", "ms/load", "heap KB/load", "chars", "kernings"));
+        for(var f : files) {
+            final String dir  = directory;
+            final String name = f.substring(0, f.length()-4);
+            var cache = Paths.get(dir + name + FontCache.EXTENSION);
+
+            var font = new Font();
+            FontCache.write(cache, font, Font.readText(font, dir, name));
+
+            run(name, "text", iterations, it -> Font.readText(it, dir, name));
+            run(name, "binary", iterations, it -> FontCache.read(cache, it));
+        }
+    }
+    private static void run(String name, String format, int iterations, Loader loader) throws Exception {
+        // warm up
+        for(int i=0; i<20; i++) {
+            loader.load(new Font());
+        }
+
+        var threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Font font   = null;
+
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            font = new Font();
+            loader.load(font);
+        }
+        long nsecs = System.nanoTime() - start;
+        bytes      = threads.getThreadAllocatedBytes(thread) - bytes;
+
+        System.out.println(String.format("%-20s %-6s %10.3f %12.1f %8d %9d",
+                                         name, format,
+                                         nsecs * 1e-6 / iterations,
+                                         bytes / 1024.0 / iterations,
+                                         font.page.getNumChars(),
+                                         font.page.getNumKernings()));
+    }
+}
@@ -0,0 +1,70 @@
+package juice.graphics;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the STB and AWT texture decoders. Only the CPU side is
+ * measured so no GL context is needed. Also checks that readPixels()
+ * copies and frees the decoded image correctly.
+ *
+ * Lives in the bench source root so it is not part of the library.
+ *
+ *  java juice.graphics.TextureDecodeBenchmark [directory] [iterations]
+ */
+final public class TextureDecodeBenchmark {
+    public static void main(String[] args) {
+        String directory = args.length > 0 ? args[0] : "./images/";
+        int iterations   = args.length > 1 ? Integer.valueOf(args[1]) : 50;
+        if(!directory.endsWith("/")) directory += "/";
+
+        var files = new File(directory).list((dir, name) -> name.endsWith(".png"));
+        if(files == null || files.length == 0) {
+            System.err.println("No png files in "+directory);
+            return;
+        }
+
+        System.out.println(String.format("%-20s %-4s %10s %14s %10s", "Image", "", "ms/decode", "heap KB/decode", "size"));
+        for(var f : files) {
+            for(var decoder : Texture.Decoder.values()) {
+                run(directory, f, decoder, iterations);
+            }
+            checkReadPixels(directory, f);
+        }
+    }
+    /** Decode, copy and free. This crashes the JVM if the wrong pointer is freed. */
+    private static void checkReadPixels(String directory, String filename) {
+        for(int i=0; i<5; i++) {
+            var p = Texture.readPixels(directory, filename);
+            if(p.data.position() != 0 || p.data.remaining() != p.width*p.height*4) {
+                throw new RuntimeException("readPixels returned "+p.data+" for "+filename+" "+p.width+"x"+p.height);
+            }
+        }
+    }
+    private static void run(String directory, String filename, Texture.Decoder decoder, int iterations) {
+        // warm up
+        for(int i=0; i<5; i++) {
+            Texture.free(Texture.decode(directory, filename, decoder));
+        }
+
+        var threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Texture.Decoded d = null;
+
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            d = Texture.decode(directory, filename, decoder);
+            if(i < iterations-1) Texture.free(d);
+        }
+        long nsecs = System.nanoTime() - start;
+        bytes      = threads.getThreadAllocatedBytes(thread) - bytes;
+
+        System.out.println(String.format("%-20s %-4s %10.3f %14.1f %10s",
+                                         filename, decoder,
+                                         nsecs * 1e-6 / iterations,
+                                         bytes / 1024.0 / iterations,
+                                         d.width+"x"+d.height));
+        Texture.free(d);
+    }
+}
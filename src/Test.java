@@ -26,6 +26,7 @@ public class Test {
         this.window = new Window((p) -> {
             p.windowed   = true;
             p.vsync      = true;
+            p.batching   = true;
             p.width      = 1024;
             p.height     = 800;
             p.title      = "JUICE";
@@ -209,17 +210,15 @@ public class Test {
         }
 
         @Override public void update(Frame frame) {
-            var keys = window.getKeysPressed();
-
-            if(keys.contains(GLFW_KEY_ESCAPE)) {
+            if(window.isKeyPressed(GLFW_KEY_ESCAPE)) {
                 window.close();
             }
         }
 
         @Override public void render(Frame frame) {
-            rectangles.render();
-            roundRectangles.render();
-            paraText.render();
+            rectangles.render(frame.batch);
+            roundRectangles.render(frame.batch);
+            paraText.render(frame.batch);
         }
     }
 }
@@ -1,8 +1,11 @@
 package juice;
 
 import juice.components.UIComponent;
+import juice.graphics.BatchRenderer;
+import juice.profiler.Profiler;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -11,30 +14,86 @@ final public class Frame {
     public long number;
     public long nsecs;
     public double delta;
+    /**
+     * With a fixed update rate this is how far between the last update and
+     * the next one this render is (0 to 1). Use it to interpolate between the
+     * previous and current state. Always 1 with a variable update rate.
+     */
+    public double alpha = 1;
+    /** Number of updates run this frame. Can be 0 or several with a fixed update rate */
+    public int updates;
+    /** Time spent in update this frame */
+    public long updateNsecs;
+    /** The frame batch, or null if batching is disabled. */
+    public BatchRenderer batch;
+    /** The window profiler, or null if profiling is disabled. */
+    public Profiler profiler;
 
     /**package*/ List<Mouse.Event> mouseEvents = new ArrayList<>();
+    /**package*/ Mouse.Samples mouseSamples = new Mouse.Samples();
+    /**package*/ List<Keyboard.Event> keyEvents = new ArrayList<>();
 
+    /**
+     * Every cursor position received since the last update, including the
+     * moves that were coalesced into one MOVE event.
+     */
+    public Mouse.Samples getRawMouseSamples() {
+        return mouseSamples;
+    }
+
+    /** Events that have not been consumed. */
     public List<Mouse.Event> getGlobalMouseEvents() {
-        return new ArrayList<>(mouseEvents);
+        var list = new ArrayList<Mouse.Event>(mouseEvents.size());
+        for(var e : mouseEvents) {
+            if(!e.isConsumed()) list.add(e);
+        }
+        return list;
     }
     public List<Mouse.Event> getGlobalMouseEvents(Mouse.EventType type) {
         return mouseEvents.stream()
-                          .filter(it->it.type==type)
+                          .filter(it->it.type==type && !it.isConsumed())
                           .collect(Collectors.toUnmodifiableList());
     }
 
     public List<Mouse.Event> getLocalMouseEvents(UIComponent forComponent) {
-        return mouseEvents.stream()
-                          .filter(it->forComponent.enclosesPoint(it.pos))
-                          .collect(Collectors.toList());
+        return getLocalMouseEvents(forComponent, null);
     }
+    /**
+     * Hit testing uses the stage spatial index so this does not walk up
+     * the parent chain. Most components have no local events so avoid
+     * allocating in that case.
+     */
     public List<Mouse.Event> getLocalMouseEvents(UIComponent forComponent, Mouse.EventType type) {
-        return mouseEvents.stream()
-                          .filter(it->forComponent.enclosesPoint(it.pos))
-                          .filter(it->it.type==type)
-                          .collect(Collectors.toList());
+        List<Mouse.Event> list = null;
+        for(var e : mouseEvents) {
+            if(e.isConsumed()) continue;
+            if(type!=null && e.type!=type) continue;
+            if(!forComponent.enclosesPoint(e.pos)) continue;
+            if(list==null) list = new ArrayList<>();
+            list.add(e);
+        }
+        return list==null ? Collections.emptyList() : list;
+    }
+    /** Returns the top-most component under the mouse event, or null. */
+    public UIComponent getTarget(Mouse.Event e) {
+        return window.getStage().hitTest(e.pos);
     }
     public void consume(Mouse.Event e) {
-        mouseEvents.removeIf(it->it==e);
+        e.consume();
+    }
+    /**
+     * Key and char events that have not been consumed, if forComponent has
+     * the keyboard focus. Otherwise an empty list.
+     */
+    public List<Keyboard.Event> getKeyEvents(UIComponent forComponent) {
+        if(!forComponent.hasFocus()) return Collections.emptyList();
+
+        List<Keyboard.Event> list = null;
+        for(var e : keyEvents) {
+            if(e.isConsumed()) continue;
+            if(list==null) list = new ArrayList<>();
+            list.add(e);
+        }
+        return list==null ? Collections.emptyList() : list;
     }
 }
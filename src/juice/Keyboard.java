@@ -0,0 +1,47 @@
+package juice;
+
+final public class Keyboard {
+
+    public enum EventType {
+        KEY_PRESS, KEY_REPEAT, KEY_RELEASE, CHAR
+    }
+    public static final class Event {
+        public EventType type;
+        /** GLFW_KEY_* for key events */
+        public int key;
+        public int scancode;
+        /** Unicode code point for CHAR events */
+        public int codepoint;
+        public Window.Modifier mods;
+        private boolean consumed;
+
+        public void consume() {
+            consumed = true;
+        }
+        public boolean isConsumed() {
+            return consumed;
+        }
+        public boolean isChar() {
+            return type==EventType.CHAR;
+        }
+        /** The CHAR code point as a String. */
+        public String getText() {
+            return new String(Character.toChars(codepoint));
+        }
+        public static Event key(EventType type, int key, int scancode, Window.Modifier mods) {
+            var e      = new Event();
+            e.type     = type;
+            e.key      = key;
+            e.scancode = scancode;
+            e.mods     = mods;
+            return e;
+        }
+        public static Event character(int codepoint, Window.Modifier mods) {
+            var e       = new Event();
+            e.type      = EventType.CHAR;
+            e.codepoint = codepoint;
+            e.mods      = mods;
+            return e;
+        }
+    }
+}
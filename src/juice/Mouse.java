@@ -1,7 +1,12 @@
 package juice;
 
+import juice.components.UIComponent;
+import juice.events.Events;
 import juice.types.Int2;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
 final public class Mouse {
 
     public enum EventType {
@@ -13,26 +18,109 @@ final public class Mouse {
         public int button;
         public Window.Modifier mods;
         public int wheel;
+        /** Set by Events.dispatch: the top-most component under pos */
+        public UIComponent target;
+        /** Set by Events.dispatch: the component whose listeners are being called */
+        public UIComponent currentTarget;
+        public Events.Phase phase;
+        private boolean consumed;
+
+        /** Stop the event being passed to any more listeners or components. */
+        public void consume() {
+            consumed = true;
+        }
+        public boolean isConsumed() {
+            return consumed;
+        }
         public static Event move(Int2 pos) {
-            var e  = new Event();
-            e.type = EventType.MOVE;
-            e.pos  = pos;
-            return e;
+            return new Event().set(EventType.MOVE, pos, 0, null, 0);
         }
         public static Event button(int b, boolean press, Window.Modifier mods, Int2 pos) {
-            var e = new Event();
-            e.type = press ? EventType.BUTTON_PRESS : EventType.BUTTON_RELEASE;
-            e.pos = pos;
-            e.button = b;
-            e.mods = mods;
-            return e;
+            return new Event().set(press ? EventType.BUTTON_PRESS : EventType.BUTTON_RELEASE, pos, b, mods, 0);
         }
         public static Event wheel(int delta, Int2 pos) {
-            var e = new Event();
-            e.type = EventType.WHEEL;
-            e.pos = pos;
-            e.wheel = delta;
+            return new Event().set(EventType.WHEEL, pos, 0, null, delta);
+        }
+        private Event set(EventType type, Int2 pos, int button, Window.Modifier mods, int wheel) {
+            this.type          = type;
+            this.pos           = pos;
+            this.button        = button;
+            this.mods          = mods;
+            this.wheel         = wheel;
+            this.target        = null;
+            this.currentTarget = null;
+            this.phase         = null;
+            this.consumed      = false;
+            return this;
+        }
+    }
+    /**
+     * Recycles events so that high rate input does not allocate. Events
+     * from a pool must not be kept after the frame they were delivered in.
+     * Render thread only.
+     */
+    public static final class EventPool {
+        private ArrayDeque<Event> free = new ArrayDeque<>();
+        private int numAllocated;
+
+        public int getNumAllocated() { return numAllocated; }
+        public int getNumFree() { return free.size(); }
+
+        public Event move(Int2 pos) {
+            return obtain().set(EventType.MOVE, pos, 0, null, 0);
+        }
+        public Event button(int b, boolean press, Window.Modifier mods, Int2 pos) {
+            return obtain().set(press ? EventType.BUTTON_PRESS : EventType.BUTTON_RELEASE, pos, b, mods, 0);
+        }
+        public Event wheel(int delta, Int2 pos) {
+            return obtain().set(EventType.WHEEL, pos, 0, null, delta);
+        }
+        public void recycle(Event e) {
+            e.set(null, null, 0, null, 0);
+            free.push(e);
+        }
+        private Event obtain() {
+            var e = free.poll();
+            if(e==null) {
+                e = new Event();
+                numAllocated++;
+            }
             return e;
         }
     }
+    /**
+     * Every cursor position reported by GLFW, including the ones that were
+     * coalesced into a single MOVE event. Useful for drawing tools that want
+     * the full path of the mouse. Positions are not rounded.
+     */
+    public static final class Samples {
+        private double[] xy   = new double[64];
+        private long[] nsecs  = new long[32];
+        private int size;
+
+        public int size() { return size; }
+        public double getX(int i) { return xy[i*2]; }
+        public double getY(int i) { return xy[i*2+1]; }
+        /** System.nanoTime() when the sample was received */
+        public long getNsecs(int i) { return nsecs[i]; }
+
+        public void add(double x, double y, long time) {
+            if(size == nsecs.length) {
+                xy    = Arrays.copyOf(xy, xy.length*2);
+                nsecs = Arrays.copyOf(nsecs, nsecs.length*2);
+            }
+            xy[size*2]   = x;
+            xy[size*2+1] = y;
+            nsecs[size]  = time;
+            size++;
+        }
+        public void addAll(Samples s) {
+            for(int i=0; i<s.size; i++) {
+                add(s.getX(i), s.getY(i), s.getNsecs(i));
+            }
+        }
+        public void clear() {
+            size = 0;
+        }
+    }
 }
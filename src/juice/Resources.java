@@ -0,0 +1,160 @@
+package juice;
+
+import juice.events.Events;
+import juice.graphics.Font;
+import juice.graphics.Texture;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Loads fonts, textures and data files without blocking the render thread.
+ *
+ * Disk reads and parsing run on a bounded pool of daemon worker threads.
+ * Only the GL work (texture and glyph atlas uploads) is posted back to the
+ * render thread through Events. The returned futures are always completed
+ * on the render thread, so their callbacks may touch components and
+ * renderers directly.
+ *
+ * Cancelling a future that has not started drops it from the pool, and
+ * one that is running has its worker interrupted and its result
+ * discarded. Components get a Scope from UIComponent.getLoads() that
+ * cancels everything they started when they are removed from the stage.
+ */
+final public class Resources {
+    /**
+     * The loads started by one owner. Only use from the render thread.
+     */
+    public static final class Scope {
+        private List<CompletableFuture<?>> futures = new ArrayList<>();
+
+        /** Cancel f when this scope is cancelled. */
+        public <T> CompletableFuture<T> track(CompletableFuture<T> f) {
+            futures.removeIf(CompletableFuture::isDone);
+            futures.add(f);
+            return f;
+        }
+        public CompletableFuture<Font> font(String name) {
+            return track(Resources.font(name));
+        }
+        public CompletableFuture<Texture> texture(String filename, Texture.Attribs attribs) {
+            return track(Resources.texture(filename, attribs));
+        }
+        public CompletableFuture<byte[]> readBytes(String path) {
+            return track(Resources.readBytes(path));
+        }
+        public CompletableFuture<String> readText(String path) {
+            return track(Resources.readText(path));
+        }
+        public <T,R> CompletableFuture<R> load(Callable<T> io, Function<T,R> onRenderThread) {
+            return track(Resources.load(io, onRenderThread));
+        }
+        /** Number of tracked loads that have not finished. */
+        public int getNumPending() {
+            futures.removeIf(CompletableFuture::isDone);
+            return futures.size();
+        }
+        /** @return The number of loads cancelled. */
+        public int cancel() {
+            int count = 0;
+            for(var f : futures) {
+                if(f.cancel(true)) count++;
+            }
+            futures.clear();
+            return count;
+        }
+    }
+    //====================================================================================
+    /**
+     * Run io on a worker thread, then pass its result to onRenderThread
+     * on the render thread. Exceptions from either complete the future
+     * exceptionally.
+     */
+    public static <T,R> CompletableFuture<R> load(Callable<T> io, Function<T,R> onRenderThread) {
+        var result = new CompletableFuture<R>();
+        var events = Events.get();
+
+        var work = workers().submit(() -> {
+            if(result.isDone()) return;
+            T value;
+            try{
+                value = io.call();
+            }catch(Throwable e) {
+                events.post(() -> result.completeExceptionally(e));
+                return;
+            }
+            events.post(() -> {
+                if(result.isDone()) return;
+                try{
+                    result.complete(onRenderThread.apply(value));
+                }catch(Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        });
+        result.whenComplete((r, e) -> {
+            if(result.isCancelled()) work.cancel(true);
+        });
+        return result;
+    }
+    /** Run io on a worker thread. The future completes on the render thread. */
+    public static <T> CompletableFuture<T> load(Callable<T> io) {
+        return load(io, Function.identity());
+    }
+    public static CompletableFuture<byte[]> readBytes(String path) {
+        return load(() -> Files.readAllBytes(Paths.get(path)));
+    }
+    public static CompletableFuture<String> readText(String path) {
+        return load(() -> new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+    }
+    /** See Font.getAsync */
+    public static CompletableFuture<Font> font(String name) {
+        return Font.getAsync(name);
+    }
+    /**
+     * Load a texture with Texture.getAsync. The future completes once the
+     * texture has been uploaded. If it was cancelled before then the
+     * reference taken by getAsync is released instead.
+     */
+    public static CompletableFuture<Texture> texture(String filename, Texture.Attribs attribs) {
+        var result = new CompletableFuture<Texture>();
+        Texture.getAsync(filename, attribs, it -> {
+            if(!result.complete(it)) it.release();
+        });
+        return result;
+    }
+    /**
+     * The bounded pool shared by every asynchronous load, including
+     * Texture.getAsync.
+     */
+    public static ExecutorService workers() {
+        if(workers == null) {
+            synchronized(Resources.class) {
+                if(workers == null) {
+                    int n = Math.max(2, Runtime.getRuntime().availableProcessors()-1);
+                    workers = Executors.newFixedThreadPool(n, r -> {
+                        var t = new Thread(r, "resource-loader");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return workers;
+    }
+    /** Stop the workers. Loads that have not finished are abandoned. */
+    public static void destroy() {
+        if(workers != null) workers.shutdownNow();
+        workers = null;
+    }
+    //====================================================================================
+    private static volatile ExecutorService workers;
+}
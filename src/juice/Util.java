@@ -83,4 +83,14 @@ final public class Util {
         buf.putFloat(f.b);
         buf.putFloat(f.a);
     }
+    /** Write RGBA as 4 unsigned normalised bytes. Values are clamped to 0..1 */
+    public static void putBytes(ByteBuffer buf, RGBA f) {
+        buf.put(toUnsignedByte(f.r));
+        buf.put(toUnsignedByte(f.g));
+        buf.put(toUnsignedByte(f.b));
+        buf.put(toUnsignedByte(f.a));
+    }
+    private static byte toUnsignedByte(float f) {
+        return (byte)Math.round(Math.max(0f, Math.min(1f, f)) * 255f);
+    }
 }
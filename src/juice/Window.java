@@ -1,13 +1,20 @@
 package juice;
 
 import juice.components.Stage;
-import juice.components.UIComponent;
+import juice.events.Events;
 import juice.graphics.Font;
+import juice.graphics.GLShaderProgram;
+import juice.graphics.DrawStats;
+import juice.graphics.GPUTimer;
+import juice.graphics.GPUTimings;
+import juice.graphics.GlyphAtlas;
 import juice.graphics.Texture;
+import juice.profiler.Profiler;
 import juice.types.Int2;
 import juice.types.RGBA;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.Version;
+import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.opengl.GL;
@@ -31,15 +38,54 @@ final public class Window {
     private GLFWErrorCallback errorCallback;
     private Callback debugProc;
     private long window;
-    private Set<Integer> keys = new HashSet<>();
+    private BitSet keys = new BitSet(GLFW_KEY_LAST+1);
+    private Modifier modifiers = new Modifier();
+    private List<Keyboard.Event> keyEvents = new ArrayList<>();
     private Stage stage;
     private Props props = new Props();
     private boolean closingDown = false;
     private Lambda.V windowCloseCallback;
+    private long sleepNsecs, workNsecs;
+    private Profiler profiler;
+    private GPUTimer gpuTimer;
     //====================================================================
     public static final class Props {
         public boolean windowed  = true;
         public boolean vsync     = true;
+        /** Collect renderer output into a single BatchRenderer per frame */
+        public boolean batching  = false;
+        /** Time per frame spent uploading textures loaded by Texture.getAsync */
+        public double textureUploadMs = 2;
+        /** Time per frame spent running tasks posted to Events from other threads */
+        public double taskBudgetMs = 2;
+        /** Only redraw the areas of the stage that have changed. See Stage.invalidate */
+        public boolean dirtyRendering = false;
+        /**
+         * Sleep in glfwWaitEventsTimeout instead of rendering when nothing is
+         * animating or invalidated. Input and post() wake the loop immediately.
+         */
+        public boolean idleMode = false;
+        /** Longest time to sleep for in idle mode */
+        public double idleTimeoutSecs = 0.5;
+        /**
+         * If > 0 update at this fixed rate with frame.delta always 1/fixedUpdateHz
+         * and render with frame.alpha set for interpolation. If 0 update once per
+         * frame with the variable frame time.
+         */
+        public int fixedUpdateHz = 0;
+        /** Most fixed updates to run in one frame. Time beyond this is dropped */
+        public int maxUpdateSteps = 5;
+        /** Record frame timings. See getProfiler() */
+        public boolean profiling = false;
+        /** Number of frames the profiler keeps */
+        public int profilerFrames = 600;
+        /** Time the GPU work of each renderer. See GPUTimings */
+        public boolean gpuTimings = false;
+        /**
+         * Merge consecutive mouse moves into one MOVE event per frame.
+         * Every cursor position is still available from Frame.getRawMouseSamples
+         */
+        public boolean coalesceMouseMoves = true;
         public int width         = 400;
         public int height        = 400;
         public String title      = "Juice Application";
@@ -57,11 +103,25 @@ final public class Window {
             ALT   = (value & GLFW_MOD_ALT) != 0;
         }
     }
-    private Int2 mousePos = Int2.ZERO;
+    private int mouseX, mouseY;
+    private Int2 mousePos = Int2.ZERO;      // created from mouseX,mouseY when needed
+    private Int2 framebufferSize = Int2.ZERO;
     private List<Mouse.Event> mouseEvents = new ArrayList<>();
+    private Mouse.Event pendingMove;        // coalesced MOVE at the end of mouseEvents. Its pos is set later
+    private Mouse.EventPool eventPool = new Mouse.EventPool();
+    private Mouse.Samples mouseSamples = new Mouse.Samples();
+    private long numRawMouseEvents, numDeliveredMouseEvents;
     //====================================================================
-    public UIComponent getStage() { return stage; }
-    public Int2 getMousePos() { return mousePos; }
+    public Stage getStage() { return stage; }
+    public Int2 getMousePos() {
+        if(mousePos==null) mousePos = new Int2(mouseX, mouseY);
+        return mousePos;
+    }
+    /** Number of mouse callbacks received from GLFW */
+    public long getNumRawMouseEvents() { return numRawMouseEvents; }
+    /** Number of mouse events passed to updates after coalescing */
+    public long getNumDeliveredMouseEvents() { return numDeliveredMouseEvents; }
+    public Mouse.EventPool getMouseEventPool() { return eventPool; }
 
     public void show(boolean show) {
         if(show) glfwShowWindow(window);
@@ -73,8 +133,21 @@ final public class Window {
         glfwGetWindowSize(window, w, h);
         return new Int2(w.get(0), h.get(0));
     }
+    /** Size in pixels. Larger than the window size on HiDPI displays */
+    public Int2 getFramebufferSize() {
+        return framebufferSize;
+    }
+    /** @param key GLFW_KEY_* */
+    public boolean isKeyPressed(int key) {
+        return key >= 0 && keys.get(key);
+    }
+    /** Allocates a new set. Prefer isKeyPressed. */
     public Set<Integer> getKeysPressed() {
-        return Collections.unmodifiableSet(keys);
+        var set = new HashSet<Integer>();
+        for(int k = keys.nextSetBit(0); k >= 0; k = keys.nextSetBit(k+1)) {
+            set.add(k);
+        }
+        return Collections.unmodifiableSet(set);
     }
     public void setWindowTitle(String title) {
         glfwSetWindowTitle(window, title);
@@ -126,6 +199,7 @@ final public class Window {
         if(!glfwInit()) {
             throw new IllegalStateException("Unable to initialize GLFW");
         }
+        Events.get().setWakeup(GLFW::glfwPostEmptyEvent);
 
         glfwDefaultWindowHints();
         glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
@@ -191,30 +265,63 @@ final public class Window {
         System.out.println("Window size ... " + getWindowSize());
 
         glfwSetKeyCallback(window, (window1, key, scancode, action, mods) -> {
+            // Char events don't come with modifiers so remember the last ones
+            modifiers = new Modifier();
+            modifiers.apply(mods);
+
+            Keyboard.EventType type;
             if(action == GLFW_PRESS) {
-                keys.add(key);
+                if(key >= 0) keys.set(key);
+                type = Keyboard.EventType.KEY_PRESS;
             } else if(action==GLFW_RELEASE) {
-                keys.remove(key);
+                if(key >= 0) keys.clear(key);
+                type = Keyboard.EventType.KEY_RELEASE;
+            } else {
+                type = Keyboard.EventType.KEY_REPEAT;
             }
+            keyEvents.add(Keyboard.Event.key(type, key, scancode, modifiers));
+        });
+        glfwSetCharCallback(window, (window1, codepoint) -> {
+            keyEvents.add(Keyboard.Event.character(codepoint, modifiers));
         });
         glfwSetMouseButtonCallback(window, (window1, button, action, mods) -> {
 
             var m = new Modifier();
             m.apply(mods);
 
+            numRawMouseEvents++;
             if(action==GLFW_PRESS) {
-                mouseEvents.add(Mouse.Event.button(button, true, m, mousePos));
+                queueMouseEvent(eventPool.button(button, true, m, getMousePos()));
             } else if(action==GLFW_RELEASE) {
-                mouseEvents.add(Mouse.Event.button(button, false, m, mousePos));
+                queueMouseEvent(eventPool.button(button, false, m, getMousePos()));
             }
         });
         glfwSetCursorPosCallback(window, (window1, xpos, ypos) -> {
-            mousePos = new Int2((int)xpos, (int)ypos);
-
-            mouseEvents.add(Mouse.Event.move(mousePos));
+            numRawMouseEvents++;
+            mouseSamples.add(xpos, ypos, System.nanoTime());
+
+            int x = (int)xpos, y = (int)ypos;
+            if(x==mouseX && y==mouseY) return;
+            mouseX   = x;
+            mouseY   = y;
+            mousePos = null;
+
+            if(!props.coalesceMouseMoves) {
+                queueMouseEvent(eventPool.move(getMousePos()));
+            } else if(pendingMove==null) {
+                var e = eventPool.move(null);
+                queueMouseEvent(e);
+                pendingMove = e;
+            }
         });
         glfwSetScrollCallback(window, (window1, xoffset, yoffset) -> {
-            mouseEvents.add(Mouse.Event.wheel((int)yoffset, mousePos));
+            numRawMouseEvents++;
+            queueMouseEvent(eventPool.wheel((int)yoffset, getMousePos()));
+        });
+        glfwSetFramebufferSizeCallback(window, (window1, width, height) -> {
+            framebufferSize = new Int2(width, height);
+            glViewport(0, 0, width, height);
+            if(stage!=null) stage.invalidateAll();
         });
         glfwSetWindowCloseCallback(window, window1 -> {
             if(windowCloseCallback!=null) {
@@ -225,27 +332,57 @@ final public class Window {
         });
 
         glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        glViewport(0, 0, props.width, props.height);
+        IntBuffer fbw = BufferUtils.createIntBuffer(1);
+        IntBuffer fbh = BufferUtils.createIntBuffer(1);
+        glfwGetFramebufferSize(window, fbw, fbh);
+        framebufferSize = new Int2(fbw.get(0), fbh.get(0));
+        glViewport(0, 0, framebufferSize.getX(), framebufferSize.getY());
 
         // Enable alpha blending
         glEnable(GL_BLEND);
         glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
 
-        stage = new Stage(this);
+        GPUTimings.setEnabled(props.gpuTimings);
+        if(props.profiling) {
+            profiler = new Profiler(props.profilerFrames);
+            // The frame query can't be nested around the per-renderer ones
+            if(!props.gpuTimings) gpuTimer = new GPUTimer();
+        }
+
+        stage = new Stage(this, props.batching, props.dirtyRendering);
         stage.setRelPos(Int2.ZERO);
         stage.setSize(getWindowSize());
     }
+    /**
+     * Run a task on the render thread at the start of the next frame.
+     * Can be called from any thread. Wakes the loop if it is idle.
+     */
+    public void post(Runnable task) {
+        Events.get().post(task);
+    }
+    /** Total time the loop has spent waiting for events because there was nothing to draw */
+    public long getSleepNsecs() { return sleepNsecs; }
+    /** Total time the loop has spent updating and rendering */
+    public long getWorkNsecs() { return workNsecs; }
+    /** Returns the profiler or null if Props.profiling is off */
+    public Profiler getProfiler() { return profiler; }
+
     public void close() {
         closingDown = true;
         //glfwSetWindowShouldClose(window, true);
     }
     public void destroy() {
         stage.destroy();
+        if(gpuTimer!=null) gpuTimer.destroy();
         debugProc.free();
         errorCallback.free();
+        Resources.destroy();
         Texture.destroy();
         Font.destroy();
+        GlyphAtlas.destroy();
+        GLShaderProgram.destroyShared();
         glfwDestroyWindow(window);
+        Events.get().setWakeup(null);
         glfwTerminate();
     }
     public void loop() {
@@ -254,33 +391,124 @@ final public class Window {
         long lastFrameTimestamp = startTimestamp;
         int prevSecond          = (int)(lastFrameTimestamp * 1e-9);
         int prev5Seconds        = prevSecond;
-        double delta            = 1;
+        // A fixed rate starts with one step so that the first frame does not run a backlog of updates
+        double delta            = props.fixedUpdateHz > 0 ? 1.0 / props.fixedUpdateHz : 1;
+        double accumulator      = 0;
         var frame               = new Frame();
-        frame.window = this;
+        frame.window   = this;
+        frame.profiler = profiler;
+        long gpuTotal  = 0;
 
         while(!closingDown) {
 
             frame.number = frameNumber;
             frame.nsecs  = System.nanoTime()-startTimestamp;
-            frame.delta  = delta;
-
-            glClear(GL_COLOR_BUFFER_BIT);
 
-            stage.update(frame);
-            stage.render(frame);
+            // Posted tasks and textures that have just arrived could change anything on screen
+            boolean ranTasks = Events.get().runTasks((long)(props.taskBudgetMs * 1e6)) > 0;
+            int uploads      = Texture.processUploads((long)(props.textureUploadMs * 1e6));
+            if(ranTasks || uploads > 0) {
+                stage.invalidateAll();
+            }
 
-            glfwSwapBuffers(window);
-            glfwPollEvents();
+            long updateStart = System.nanoTime();
+            if(props.fixedUpdateHz > 0) {
+                double step = 1.0 / props.fixedUpdateHz;
+                accumulator += delta;
+                frame.delta   = step;
+                frame.updates = 0;
+                while(accumulator >= step && frame.updates < props.maxUpdateSteps) {
+                    update(frame);
+                    accumulator -= step;
+                }
+                // Too far behind. Drop the backlog rather than spiralling
+                if(accumulator >= step) accumulator = step * 0.999;
+
+                frame.alpha = accumulator / step;
+            } else {
+                frame.delta   = delta;
+                frame.updates = 0;
+                update(frame);
+            }
+            frame.updateNsecs = System.nanoTime() - updateStart;
+
+            boolean draw = props.idleMode ? !stage.isIdle() : stage.isDirty();
+            long sleep   = 0;
+
+            if(draw) {
+                DrawStats.reset();
+                long renderStart = System.nanoTime();
+                if(gpuTimer!=null) gpuTimer.begin();
+
+                if(!props.dirtyRendering) glClear(GL_COLOR_BUFFER_BIT);
+                stage.render(frame);
+
+                if(gpuTimer!=null) gpuTimer.end();
+                long swapStart = System.nanoTime();
+                glfwSwapBuffers(window);
+                long pollStart = System.nanoTime();
+                glfwPollEvents();
+
+                if(GPUTimings.isEnabled()) GPUTimings.collect();
+
+                if(profiler!=null) {
+                    profiler.set(Profiler.Metric.UPDATE, frame.updateNsecs);
+                    profiler.set(Profiler.Metric.RENDER, swapStart - renderStart);
+                    profiler.set(Profiler.Metric.SWAP, pollStart - swapStart);
+                    profiler.set(Profiler.Metric.POLL, System.nanoTime() - pollStart);
+                    if(gpuTimer!=null) {
+                        profiler.set(Profiler.Metric.GPU, gpuTimer.getLastNsecs());
+                    } else {
+                        // Sum of the renderer results that arrived this frame
+                        long t = GPUTimings.getTotalNsecs();
+                        profiler.set(Profiler.Metric.GPU, t - gpuTotal);
+                        gpuTotal = t;
+                    }
+                    profiler.set(Profiler.Metric.DRAW_CALLS, DrawStats.getDrawCalls());
+                }
+            } else {
+                // Nothing changed. Wait for input rather than redrawing the same frame
+                long t = System.nanoTime();
+                glfwWaitEventsTimeout(props.idleMode ? props.idleTimeoutSecs : 1.0/60);
+                sleep = System.nanoTime() - t;
+                sleepNsecs += sleep;
+            }
 
-            frame.mouseEvents.clear();
-            frame.mouseEvents.addAll(mouseEvents);
+            // Events are kept until an update has seen them
+            finishPendingMove();
+            for(var e : mouseEvents) {
+                int n = frame.mouseEvents.size();
+                if(props.coalesceMouseMoves && e.type==Mouse.EventType.MOVE &&
+                   n > 0 && frame.mouseEvents.get(n-1).type==Mouse.EventType.MOVE)
+                {
+                    // A frame with no update left a move behind
+                    frame.mouseEvents.get(n-1).pos = e.pos;
+                    eventPool.recycle(e);
+                } else {
+                    frame.mouseEvents.add(e);
+                }
+            }
             mouseEvents.clear();
+            frame.mouseSamples.addAll(mouseSamples);
+            mouseSamples.clear();
+            frame.keyEvents.addAll(keyEvents);
+            keyEvents.clear();
 
             /// Update timing info
             var timestamp  = System.nanoTime();
             var frameNsecs = (timestamp - lastFrameTimestamp);
             lastFrameTimestamp = timestamp;
 
+            // delta stays wall-clock time so timers keep running while asleep
+            long frameWorkNsecs = frameNsecs - sleep;
+            workNsecs += frameWorkNsecs;
+
+            // Only frames that were drawn are recorded
+            if(profiler!=null && draw) {
+                profiler.set(Profiler.Metric.FRAME, frameWorkNsecs);
+                profiler.endFrame(frameNumber);
+            }
+
             delta = (float)((double)frameNsecs * 1e-9);
             frameNumber++;
 
@@ -303,5 +531,35 @@ final public class Window {
             }
         }
     }
+    private void update(Frame frame) {
+        // Push each event to its listeners once. Components that pull
+        // events in update() only see the ones that were not consumed
+        var events = Events.get();
+        for(var e : frame.mouseEvents) {
+            events.dispatch(stage, e);
+        }
+        for(var e : frame.keyEvents) {
+            events.dispatch(stage, e);
+        }
+        stage.update(frame);
+
+        numDeliveredMouseEvents += frame.mouseEvents.size();
+        for(var e : frame.mouseEvents) {
+            eventPool.recycle(e);
+        }
+        frame.mouseEvents.clear();
+        frame.mouseSamples.clear();
+        frame.keyEvents.clear();
+        frame.updates++;
+    }
+    private void queueMouseEvent(Mouse.Event e) {
+        finishPendingMove();
+        mouseEvents.add(e);
+    }
+    private void finishPendingMove() {
+        if(pendingMove==null) return;
+        pendingMove.pos = getMousePos();
+        pendingMove     = null;
+    }
 }
 
@@ -27,6 +27,10 @@ final public class Animations {
     public void removeAll() {
         toBeRemoved.addAll(animations.keySet());
     }
+    /** True if any animations are waiting to start or still running. */
+    public boolean isActive() {
+        return !animations.isEmpty() || !toBeAdded.isEmpty();
+    }
     public void pauseAll() {
         animations.values().forEach(Animation::pause);
     }
@@ -131,8 +131,8 @@ final public class Menu extends UIComponent {
         }
     }
     @Override public void render(Frame frame) {
-        roundRectangles.render();
-        text.render();
+        roundRectangles.render(frame.batch);
+        text.render(frame.batch);
     }
     public void highlightItem(MenuItem item) {
         if(!isOpen) return;
@@ -151,6 +151,7 @@ final public class Menu extends UIComponent {
             c, c, c.alpha(0.2f), c.alpha(0.2f),
             0, 0, r, r
         ));
+        invalidate();
     }
     private void openMenu() {
         if(items.size()==0) return;
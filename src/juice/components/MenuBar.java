@@ -67,7 +67,7 @@ final public class MenuBar extends UIComponent {
         roundRectangles = null;
     }
     @Override public void render(Frame frame) {
-        roundRectangles.render();
+        roundRectangles.render(frame.batch);
     }
     @Override public void onResized() {
         if(roundRectangles==null) return;
@@ -54,6 +54,7 @@ final public class MenuItem extends UIComponent {
                 if(e.type==Mouse.EventType.BUTTON_PRESS) {
                     frame.consume(e);
                     getMenu().getText().replaceColour(index+1, RGBA.WHITE.gamma(0.6f));
+                    invalidate();
                     callback.call();
                 } else if(e.type==Mouse.EventType.BUTTON_RELEASE) {
                     frame.consume(e);
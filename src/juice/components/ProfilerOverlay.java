@@ -0,0 +1,99 @@
+package juice.components;
+
+import juice.Frame;
+import juice.graphics.Font;
+import juice.graphics.GPUTimings;
+import juice.graphics.RectangleRenderer;
+import juice.graphics.TextRenderer;
+import juice.profiler.Profiler;
+import juice.types.Int2;
+import juice.types.RGBA;
+
+import java.util.Locale;
+
+/**
+ * Shows a summary of the window profiler. Needs Props.profiling to be set.
+ * The text is refreshed twice a second.
+ */
+final public class ProfilerOverlay extends UIComponent {
+    private static final long REFRESH_NSECS  = 500_000_000L;
+    private static final int TEXT_SIZE       = 14;
+    private static final int LINE_HEIGHT     = 16;
+    private static final int NUM_COMPONENTS  = 3;
+
+    private Font font;
+    private RectangleRenderer background;
+    private TextRenderer text;
+    private long lastRefresh = -REFRESH_NSECS;
+
+    public ProfilerOverlay(Font font) {
+        this.font = font;
+    }
+    @Override public void onAddedToStage() {
+        background = new RectangleRenderer()
+            .setVP(getStage().getCamera().VP())
+            .addRectangle(new RectangleRenderer.Rectangle(getAbsPos(), getSize(), RGBA.BLACK.alpha(0.6f)));
+
+        text = new TextRenderer(font)
+            .setVP(getStage().getCamera().VP())
+            .setColour(RGBA.WHITE)
+            .setUseDropShadow(false)
+            .setSize(TEXT_SIZE);
+    }
+    @Override public void onRemovedFromStage() {
+        destroy();
+    }
+    @Override public void onMoved() {
+        if(background!=null) background.setRectangle(0, new RectangleRenderer.Rectangle(getAbsPos(), getSize(), RGBA.BLACK.alpha(0.6f)));
+        lastRefresh = -REFRESH_NSECS;
+    }
+    @Override public void onResized() {
+        onMoved();
+    }
+    @Override public void destroy() {
+        if(background!=null) background.destroy();
+        if(text!=null) text.destroy();
+        background = null;
+        text       = null;
+    }
+    @Override public void update(Frame frame) {
+        if(frame.profiler==null || text==null) return;
+        if(frame.nsecs - lastRefresh < REFRESH_NSECS) return;
+        lastRefresh = frame.nsecs;
+
+        var p   = frame.profiler;
+        var pos = getAbsPos().add(4, 2);
+
+        text.clearText();
+        for(var m : Profiler.Metric.values()) {
+            var s = p.summary(m);
+            var line = m.isTime() ?
+                String.format(Locale.ROOT, "%-10s p50 %6.2f  p99 %6.2f ms", m.name().toLowerCase(), s.p50, s.p99) :
+                String.format(Locale.ROOT, "%-10s p50 %6.0f  p99 %6.0f", "draws", s.p50, s.p99);
+            text.appendText(line, pos);
+            pos = pos.add(0, LINE_HEIGHT);
+        }
+
+        var timings = p.getComponentTimings();
+        for(int i=0; i<NUM_COMPONENTS && i<timings.size(); i++) {
+            var t = timings.get(i);
+            text.appendText(String.format(Locale.ROOT, "%-18s %8.2f ms", t.name, t.getTotalNsecs()*1e-6), pos);
+            pos = pos.add(0, LINE_HEIGHT);
+        }
+
+        if(GPUTimings.isEnabled()) {
+            var entries = GPUTimings.getEntries();
+            for(int i=0; i<NUM_COMPONENTS && i<entries.size(); i++) {
+                var e = entries.get(i);
+                text.appendText(String.format(Locale.ROOT, "gpu %-14s %8.3f ms", e.renderer+"#"+e.id, e.getMeanMs()), pos);
+                pos = pos.add(0, LINE_HEIGHT);
+            }
+        }
+        invalidate();
+    }
+    @Override public void render(Frame frame) {
+        if(text==null) return;
+        background.render(frame.batch);
+        text.render(frame.batch);
+    }
+}
@@ -0,0 +1,136 @@
+package juice.components;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid of the absolute bounds of every component on the stage.
+ *
+ * Each component is listed in every cell its bounds overlap so a point
+ * query only has to look at the components in one cell. The bounds are
+ * also kept per component so that enclosesPoint() is a single rectangle
+ * test with no walk up the parent chain.
+ *
+ * Cells are keyed by a primitive long so that queries do not allocate.
+ * Cells that become empty keep their list for reuse.
+ */
+final class SpatialGrid {
+    static final int CELL_SIZE = 64;
+
+    private static final class Bounds {
+        int x, y, w, h;
+        int cx0, cy0, cx1, cy1;   // cells covered, inclusive. Empty if cx1 < cx0
+    }
+    private Cells cells = new Cells();
+    private Map<UIComponent, Bounds> bounds    = new IdentityHashMap<>();
+
+    int size() {
+        return bounds.size();
+    }
+    void update(UIComponent c, int x, int y, int w, int h) {
+        var b = bounds.get(c);
+        if(b==null) {
+            b = new Bounds();
+            b.cx1 = -1;
+            bounds.put(c, b);
+        }
+        b.x = x; b.y = y; b.w = w; b.h = h;
+
+        int cx0 = 1, cy0 = 1, cx1 = 0, cy1 = 0;
+        if(w > 0 && h > 0) {
+            cx0 = Math.floorDiv(x, CELL_SIZE);
+            cy0 = Math.floorDiv(y, CELL_SIZE);
+            cx1 = Math.floorDiv(x+w-1, CELL_SIZE);
+            cy1 = Math.floorDiv(y+h-1, CELL_SIZE);
+        }
+        if(cx0==b.cx0 && cy0==b.cy0 && cx1==b.cx1 && cy1==b.cy1) return;
+
+        removeFromCells(c, b);
+        b.cx0 = cx0; b.cy0 = cy0; b.cx1 = cx1; b.cy1 = cy1;
+        for(int cy=cy0; cy<=cy1; cy++) {
+            for(int cx=cx0; cx<=cx1; cx++) {
+                cells.getOrCreate(key(cx, cy)).add(c);
+            }
+        }
+    }
+    void remove(UIComponent c) {
+        var b = bounds.remove(c);
+        if(b!=null) removeFromCells(c, b);
+    }
+    boolean isIndexed(UIComponent c) {
+        return bounds.containsKey(c);
+    }
+    boolean contains(UIComponent c, int x, int y) {
+        var b = bounds.get(c);
+        return b!=null && x >= b.x && y >= b.y && x < b.x+b.w && y < b.y+b.h;
+    }
+    /** Add every component whose bounds contain x,y to dest. */
+    List<UIComponent> query(int x, int y, List<UIComponent> dest) {
+        var list = cells.get(key(Math.floorDiv(x, CELL_SIZE), Math.floorDiv(y, CELL_SIZE)));
+        if(list==null) return dest;
+
+        for(var c : list) {
+            if(contains(c, x, y)) dest.add(c);
+        }
+        return dest;
+    }
+    //====================================================================
+    private void removeFromCells(UIComponent c, Bounds b) {
+        for(int cy=b.cy0; cy<=b.cy1; cy++) {
+            for(int cx=b.cx0; cx<=b.cx1; cx++) {
+                var list = cells.get(key(cx, cy));
+                if(list!=null) list.remove(c);
+            }
+        }
+    }
+    private static long key(int cx, int cy) {
+        return ((long)cx << 32) | (cy & 0xffffffffL);
+    }
+    /** Open addressing map from cell key to its components. Entries are never removed */
+    private static final class Cells {
+        private long[] keys = new long[64];
+        private List<?>[] lists = new List<?>[64];
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        List<UIComponent> get(long key) {
+            int mask = keys.length-1;
+            for(int i=hash(key) & mask; lists[i]!=null; i = (i+1) & mask) {
+                if(keys[i]==key) return (List<UIComponent>)lists[i];
+            }
+            return null;
+        }
+        List<UIComponent> getOrCreate(long key) {
+            var list = get(key);
+            if(list!=null) return list;
+
+            if((size+1)*2 > keys.length) grow();
+            list = new ArrayList<>();
+            insert(key, list);
+            size++;
+            return list;
+        }
+        private void insert(long key, List<?> list) {
+            int mask = keys.length-1;
+            int i    = hash(key) & mask;
+            while(lists[i]!=null) i = (i+1) & mask;
+            keys[i]  = key;
+            lists[i] = list;
+        }
+        private void grow() {
+            var oldKeys  = keys;
+            var oldLists = lists;
+            keys  = new long[oldKeys.length*2];
+            lists = new List<?>[oldKeys.length*2];
+            for(int i=0; i<oldKeys.length; i++) {
+                if(oldLists[i]!=null) insert(oldKeys[i], oldLists[i]);
+            }
+        }
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+}
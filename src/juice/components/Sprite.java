@@ -1,12 +1,15 @@
 package juice.components;
 
 import juice.Frame;
+import juice.graphics.DrawStats;
 import juice.graphics.GLShaderProgram;
 import juice.graphics.Texture;
+import juice.graphics.TextureRegion;
 import juice.graphics.VAO;
 import juice.graphics.VBO;
 import juice.types.RGBA;
 import org.joml.Matrix4f;
+import org.joml.Vector4f;
 
 import java.nio.ByteBuffer;
 
@@ -15,8 +18,6 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
 import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
-import static org.lwjgl.opengl.GL20.GL_FRAGMENT_SHADER;
-import static org.lwjgl.opengl.GL20.GL_VERTEX_SHADER;
 
 /**
  * Manage a movable, textured image.
@@ -26,17 +27,20 @@ public class Sprite extends UIComponent {
     private VBO vbo;
     private ByteBuffer buffer;
     private GLShaderProgram prog;
-    private Texture texture;
+    private TextureRegion region;
+    private RGBA colour = RGBA.WHITE;
     private boolean modelMatrixChanged = true;
     private Matrix4f translation = new Matrix4f();
     private Matrix4f scale = new Matrix4f();
+    private Matrix4f model = new Matrix4f();
+    private Matrix4f viewProj = new Matrix4f();
+    /** Uniform values, updated only when the colour or region changes */
+    private Vector4f colourVec = colour.toVector4f();
+    private Vector4f uvRect = new Vector4f(0, 0, 1, 1);
 
     public Sprite() {
         this.vao = new VAO();
-        this.prog = new GLShaderProgram()
-            .shaderSource(GL_VERTEX_SHADER, VS)
-            .shaderSource(GL_FRAGMENT_SHADER, FS)
-            .link();
+        this.prog = GLShaderProgram.get(VS, FS);
 
         prog.use().setUniform("SAMPLER0", 0);
 
@@ -46,20 +50,28 @@ public class Sprite extends UIComponent {
         if(vao!=null) {
             if(vbo != null) vbo.destroy();
             vao.destroy();
-            prog.destroy();
+            prog.release();
             vao = null;
         }
     }
     public Sprite setVP(Matrix4f viewProj) {
-        prog.use().setUniform("VP", viewProj);
+        this.viewProj = viewProj;
         return this;
     }
     public Sprite setColour(RGBA colour) {
-        prog.use().setUniform("COLOUR", colour.toVector4f());
+        this.colour = colour;
+        colourVec.set(colour.r, colour.g, colour.b, colour.a);
+        invalidate();
         return this;
     }
     public Sprite setTexture(Texture t) {
-        this.texture = t;
+        return setTexture(new TextureRegion(t));
+    }
+    /** Display part of a texture, usually an image from a TextureAtlas. */
+    public Sprite setTexture(TextureRegion r) {
+        this.region = r;
+        uvRect.set(r.u, r.v, r.u2-r.u, r.v2-r.v);
+        invalidate();
         return this;
     }
     @Override public void onMoved() {
@@ -78,18 +90,29 @@ public class Sprite extends UIComponent {
             translation.translation(p.getX(), p.getY(), 0f);
             scale.scaling(s.getX());
 
-            var world = translation.mul(scale);
-
-            prog.use().setUniform("MODEL", world);
+            translation.mul(scale, model);
         }
     }
     @Override public void render(Frame frame) {
+        if(frame.batch!=null) {
+            var p = getAbsPos();
+            var s = getSize();
+            // The model matrix scales uniformly by width
+            frame.batch.texturedQuad(region.texture, p.getX(), p.getY(), s.getX(), s.getX(),
+                                     region.u, region.v, region.u2, region.v2, colour);
+            return;
+        }
         vao.bind();
-        prog.use();
+        prog.use()
+            .setUniform("VP", viewProj)
+            .setUniform("MODEL", model)
+            .setUniform("COLOUR", colourVec)
+            .setUniform("UVRECT", uvRect);
 
         glActiveTexture(GL_TEXTURE0 + 0);
-        glBindTexture(GL_TEXTURE_2D, texture.id);
+        glBindTexture(GL_TEXTURE_2D, region.texture.id);
         glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);   // 4 vertices
+        DrawStats.drawCall();
     }
     //====================================================================================
     private void populateVbo() {
@@ -143,6 +166,7 @@ public class Sprite extends UIComponent {
         "" +
         "    uniform mat4 VP;" +
         "    uniform mat4 MODEL;" +
+        "    uniform vec4 UVRECT = vec4(0,0,1,1);" +
         "" +
         "    out VS_OUT {" +
         "        vec2 uvs;" +
@@ -150,7 +174,7 @@ public class Sprite extends UIComponent {
         "" +
         "    void main() {" +
         "        gl_Position = VP * MODEL * vec4(pos,0,1);" +
-        "        vs_out.uvs  = uvs;" +
+        "        vs_out.uvs  = UVRECT.xy + uvs * UVRECT.zw;" +
         "    }" +
         "";
     private static final String FS = "#version 330 core\n" +
@@ -4,10 +4,18 @@ import juice.Camera2D;
 import juice.Frame;
 import juice.Window;
 import juice.animation.Animations;
+import juice.graphics.BatchRenderer;
+import juice.graphics.FBO;
+import juice.types.Int2;
+import juice.types.Rect;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.lwjgl.opengl.GL11.*;
+
 final public class Stage extends UIComponent {
     public interface Hook {
         void call();
@@ -16,26 +24,101 @@ final public class Stage extends UIComponent {
     private Window window;
     private Camera2D camera;
     private Animations animations = new Animations();
+    private BatchRenderer batch;
     private List<Hook> afterUpdateHooks = new ArrayList<>();
+
+    /** Dirty rendering. The union of all invalidated world areas since the last render */
+    private boolean dirtyRendering;
+    private FBO fbo;
+    private int dirtyX0, dirtyY0, dirtyX1, dirtyY1;
+    private boolean dirtyAll;
+    /** The camera at the last render. Any change redraws everything */
+    private Matrix4f renderedVP = new Matrix4f();
+    private Vector3f corner = new Vector3f();
+
+    /** Absolute bounds of every component on the stage */
+    private SpatialGrid grid = new SpatialGrid();
+    private List<UIComponent> hits = new ArrayList<>();
+
+    /** The component that receives keyboard events */
+    private UIComponent focus;
     //===================================================================
-    public Stage(Window window) {
-        this.window = window;
-        this.camera = new Camera2D(window.getWindowSize());
+    /**
+     * @param dirtyRendering If true the stage is drawn into an offscreen buffer and
+     *                       only the areas passed to invalidate() are redrawn. Frames
+     *                       where nothing is invalidated are not rendered at all.
+     */
+    public Stage(Window window, boolean batching, boolean dirtyRendering) {
+        this.window         = window;
+        this.camera         = new Camera2D(window.getWindowSize());
+        this.dirtyRendering = dirtyRendering;
+        if(batching) {
+            this.batch = new BatchRenderer();
+        }
+        clearDirty();
+        invalidateAll();
+        // The stage is indexed like its children so that its own hit tests work
+        addToIndex(this);
     }
     @Override public void destroy() {
         for(var c : getChildren()) {
             c.fireDestroy();
         }
+        if(batch!=null) batch.destroy();
+        if(fbo!=null) fbo.destroy();
     }
 
     public Window getWindow() { return window; }
     public Camera2D getCamera() { return camera; }
     public Animations getAnimations() { return animations; }
+    /** Returns the frame batch or null if batching is disabled. */
+    public BatchRenderer getBatch() { return batch; }
+    public boolean isDirtyRendering() { return dirtyRendering; }
+
+    /** True if anything needs to be drawn this frame. Always true when dirty rendering is off. */
+    public boolean isDirty() {
+        return !dirtyRendering || hasInvalidations();
+    }
+    /** True if anything has been invalidated since the last render */
+    public boolean hasInvalidations() {
+        return dirtyAll || (dirtyX0 < dirtyX1 && dirtyY0 < dirtyY1);
+    }
+    /** True if there is nothing to draw and nothing waiting to run */
+    public boolean isIdle() {
+        return !hasInvalidations() && !animations.isActive() && afterUpdateHooks.isEmpty();
+    }
+    /**
+     * Mark an area as needing to be redrawn. The area is in world (component)
+     * coordinates and is mapped through the camera when rendering.
+     */
+    public void invalidate(int x, int y, int w, int h) {
+        if(w<=0 || h<=0) return;
+        dirtyX0 = Math.min(dirtyX0, x);
+        dirtyY0 = Math.min(dirtyY0, y);
+        dirtyX1 = Math.max(dirtyX1, x+w);
+        dirtyY1 = Math.max(dirtyY1, y+h);
+    }
+    public void invalidate(Int2 pos, Int2 size) {
+        invalidate(pos.getX(), pos.getY(), size.getX(), size.getY());
+    }
+    /** Redraw the whole framebuffer, whatever the camera is looking at. */
+    public void invalidateAll() {
+        dirtyAll = true;
+    }
+    @Override public void invalidate() {
+        invalidateAll();
+    }
+    @Override public void onResized() {
+        invalidateAll();
+    }
 
     @Override public void update(Frame frame) {
 
         animations.update(frame.delta);
 
+        // Animations can move or change anything so redraw everything while they run
+        if(animations.isActive()) invalidateAll();
+
         // Update children in reverse order
         var children = getChildren();
         for(int i = children.size()-1; i>=0; i--) {
@@ -49,14 +132,175 @@ final public class Stage extends UIComponent {
             afterUpdateHooks.forEach(Hook::call);
             afterUpdateHooks.clear();
         }
+        checkCamera();
     }
     @Override public void render(Frame frame) {
-        for(var c : getChildren()) {
-            c.fireRender(frame);
+        if(!dirtyRendering) {
+            renderChildren(frame);
+            clearDirty();
+            return;
+        }
+
+        // The FBO matches the framebuffer, which is larger than the window on HiDPI displays
+        var size = window.getFramebufferSize();
+        if(fbo==null || fbo.width!=size.getX() || fbo.height!=size.getY()) {
+            if(fbo!=null) fbo.destroy();
+            fbo = new FBO(size.getX(), size.getY());
+            invalidateAll();
+        }
+        checkCamera();
+        if(!isDirty()) return;
+
+        int x0 = 0, y0 = 0, x1 = fbo.width, y1 = fbo.height;
+        if(!dirtyAll) {
+            // Map the world space corners to framebuffer pixels. GL has y pointing up,
+            // which the camera projection already accounts for
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            var vp = camera.VP();
+            for(int i=0; i<4; i++) {
+                corner.set((i&1)==0 ? dirtyX0 : dirtyX1, (i&2)==0 ? dirtyY0 : dirtyY1, 0);
+                vp.transformProject(corner);
+                float px = (corner.x + 1) * 0.5f * fbo.width;
+                float py = (corner.y + 1) * 0.5f * fbo.height;
+                minX = Math.min(minX, px); maxX = Math.max(maxX, px);
+                minY = Math.min(minY, py); maxY = Math.max(maxY, py);
+            }
+            // Grow by a pixel to cover filtering and anti-aliased edges
+            x0 = Math.max((int)Math.floor(minX) - 1, 0);
+            y0 = Math.max((int)Math.floor(minY) - 1, 0);
+            x1 = Math.min((int)Math.ceil(maxX) + 1, fbo.width);
+            y1 = Math.min((int)Math.ceil(maxY) + 1, fbo.height);
         }
+
+        if(x0 < x1 && y0 < y1) {
+            fbo.bind();
+            glEnable(GL_SCISSOR_TEST);
+            glScissor(x0, y0, x1-x0, y1-y0);
+            glClear(GL_COLOR_BUFFER_BIT);
+
+            renderChildren(frame);
+
+            glDisable(GL_SCISSOR_TEST);
+        }
+        fbo.blitToScreen();
+        clearDirty();
     }
 
     public void addAfterUpdateHook(Hook h) {
         afterUpdateHooks.add(h);
     }
+    public UIComponent getFocus() {
+        return focus;
+    }
+    /**
+     * Give c the keyboard focus. Only components on the stage can have
+     * the focus. Pass null to clear it.
+     */
+    public void setFocus(UIComponent c) {
+        if(c==focus) return;
+        if(c!=null && c.getStage()!=this) throw new RuntimeException("Component is not on the stage");
+
+        var old = focus;
+        focus   = c;
+        if(old!=null) old.onFocusLost();
+        if(c!=null) c.onFocusGained();
+    }
+    /** True if p is inside the absolute bounds of component c. */
+    public boolean isHit(UIComponent c, Int2 p) {
+        if(!grid.isIndexed(c)) return Rect.of(c.getAbsPos(), c.getSize()).contains(p);
+        return grid.contains(c, p.getX(), p.getY());
+    }
+    /** Every component whose bounds contain p, in no particular order. */
+    public List<UIComponent> componentsAt(Int2 p) {
+        return grid.query(p.getX(), p.getY(), new ArrayList<>());
+    }
+    /**
+     * Returns the top-most component at p, ie. the one that is rendered
+     * last, or null if there is none. The stage itself is never returned.
+     */
+    public UIComponent hitTest(Int2 p) {
+        hits.clear();
+        grid.query(p.getX(), p.getY(), hits);
+
+        UIComponent top = null;
+        for(var c : hits) {
+            if(c==this) continue;
+            if(top==null || isAbove(c, top)) top = c;
+        }
+        hits.clear();
+        return top;
+    }
+    /**package*/ void addToIndex(UIComponent c) {
+        var pos = c.getAbsPos();
+        grid.update(c, pos.getX(), pos.getY(), c.getSize().getX(), c.getSize().getY());
+    }
+    /** Update c and all of its descendants after c has moved or resized. */
+    /**package*/ void updateIndex(UIComponent c) {
+        addToIndex(c);
+        for(var child : c.childList()) {
+            updateIndex(child);
+        }
+    }
+    /**package*/ void removeFromIndex(UIComponent c) {
+        grid.remove(c);
+    }
+    //===================================================================
+    private void renderChildren(Frame frame) {
+        frame.batch = batch;
+        if(batch!=null) batch.begin(camera.VP());
+
+        for(var c : getChildren()) {
+            c.fireRender(frame);
+        }
+
+        if(batch!=null) batch.flush();
+    }
+    /** Invalidate everything if the camera has panned, zoomed or rotated since the last render */
+    private void checkCamera() {
+        var vp = camera.VP();
+        if(!vp.equals(renderedVP)) {
+            renderedVP.set(vp);
+            invalidateAll();
+        }
+    }
+    /**
+     * True if a is rendered after b. Children render after their parents and later
+     * siblings after earlier ones. Walks up the parents without allocating.
+     */
+    private boolean isAbove(UIComponent a, UIComponent b) {
+        int depthA = depth(a);
+        int depthB = depth(b);
+        var x = a;
+        var y = b;
+        while(depthA > depthB) {
+            x = x.getParent();
+            depthA--;
+            if(x==b) return true;       // a is a descendant of b
+        }
+        while(depthB > depthA) {
+            y = y.getParent();
+            depthB--;
+            if(y==a) return false;      // b is a descendant of a
+        }
+        if(x==y) return false;
+        while(x.getParent()!=y.getParent()) {
+            x = x.getParent();
+            y = y.getParent();
+        }
+        var parent = x.getParent();
+        return parent.indexOf(x) > parent.indexOf(y);
+    }
+    private static int depth(UIComponent c) {
+        int depth = 0;
+        for(var p = c.getParent(); p!=null; p = p.getParent()) {
+            depth++;
+        }
+        return depth;
+    }
+    private void clearDirty() {
+        dirtyX0 = dirtyY0 = Integer.MAX_VALUE;
+        dirtyX1 = dirtyY1 = Integer.MIN_VALUE;
+        dirtyAll = false;
+    }
 }
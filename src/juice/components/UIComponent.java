@@ -1,6 +1,9 @@
 package juice.components;
 
 import juice.Frame;
+import juice.Keyboard;
+import juice.Resources;
+import juice.events.Events;
 import juice.types.Int2;
 import juice.types.Rect;
 
@@ -12,19 +15,33 @@ public class UIComponent {
     private Int2 size = Int2.ZERO;
     private List<UIComponent> children = new ArrayList<>();
     private UIComponent parent;
+    private Stage stage;
+    private Int2 absPos;    // cached, null if it needs recalculating
+    private Resources.Scope loads;
     //====================================================================
-    /** Returns the sum of all relative positions. */
+    /**
+     * Returns the sum of all relative positions. This is cached and only
+     * recalculated after this component or one of its ancestors has moved.
+     */
     public Int2 getAbsPos() {
-        if(parent==null) return pos;
-        return pos.add(parent.getAbsPos());
+        if(absPos==null) {
+            absPos = parent==null ? pos : pos.add(parent.getAbsPos());
+        }
+        return absPos;
     }
     public Int2 getRelPos() {
         return pos;
     }
     public UIComponent setRelPos(Int2 p) {
         boolean changed = p!=pos;
+        if(changed) invalidate();
         pos = p;
-        if(changed) onMoved();
+        if(changed) {
+            clearAbsPos();
+            if(getStage()!=null) getStage().updateIndex(this);
+            invalidate();
+            fireOnMoved();
+        }
         return this;
     }
     public Int2 getSize() {
@@ -32,8 +49,13 @@ public class UIComponent {
     }
     public UIComponent setSize(Int2 s) {
         boolean changed = s!=size;
+        if(changed) invalidate();
         size = s;
-        if(changed) onResized();
+        if(changed) {
+            if(getStage()!=null) getStage().updateIndex(this);
+            invalidate();
+            onResized();
+        }
         return this;
     }
     public UIComponent getParent() {
@@ -55,6 +77,7 @@ public class UIComponent {
         if(i > 0) {
             children.remove(i);
             children.add(0, child);
+            child.invalidate();
         }
     }
     /**
@@ -66,17 +89,47 @@ public class UIComponent {
         if(i!=-1 && i!=children.size()-1) {
             children.remove(i);
             children.add(child);
+            child.invalidate();
         }
     }
     public boolean enclosesPoint(Int2 p) {
+        // Components on the stage are in its spatial index
+        if(getStage()!=null) return getStage().isHit(this, p);
         return Rect.of(getAbsPos(), getSize()).contains(p);
     }
+    /**
+     * Mark the area covered by this component and its children as needing
+     * to be redrawn. Moves and resizes do this automatically. Call it after
+     * changing what the component draws, eg. after mutating a renderer.
+     */
+    public void invalidate() {
+        var stage = getStage();
+        if(stage==null) return;
+
+        stage.invalidate(getAbsPos(), getSize());
+        for(var c : children) {
+            c.invalidate();
+        }
+    }
+    public boolean hasFocus() {
+        return getStage()!=null && getStage().getFocus()==this;
+    }
+    /** Take the keyboard focus. Does nothing if this component is not on the stage. */
+    public void requestFocus() {
+        if(getStage()!=null) getStage().setFocus(this);
+    }
+    /** Returns the stage this component is on or null if it is not on the stage. */
     public Stage getStage() {
         if(this instanceof Stage) return (Stage)this;
-        if(parent==null) {
-            return null;
-        }
-        return parent.getStage();
+        return stage;
+    }
+    /**
+     * Start asynchronous loads through this so that any still running
+     * are cancelled when this component is removed from the stage.
+     */
+    public Resources.Scope getLoads() {
+        if(loads==null) loads = new Resources.Scope();
+        return loads;
     }
     //====================================================================
     public void add(UIComponent child) {
@@ -89,21 +142,25 @@ public class UIComponent {
             child.detach();
         }
         child.parent = this;
+        child.clearAbsPos();
         children.add(child);
 
         // Call events
         child.onAdded();
         onChildAdded(child);
         if(getStage()!=null) child.fireOnAddedToStage();
+        child.invalidate();
     }
     public void remove(UIComponent child) {
         boolean isOnStage = getStage()!=null;
+        if(children.contains(child)) child.invalidate();
         child.parent = null;
+        child.clearAbsPos();
         if(children.remove(child)) {
             // Call events of child was actually removed
             child.onRemoved();
             onChildRemoved(child);
-            if(isOnStage) child.fireOnRemovedFromStage();
+            if(isOnStage) child.fireOnRemovedFromStage(getStage());
         }
     }
     public boolean isAttached() {
@@ -140,11 +197,21 @@ public class UIComponent {
         // removed from the stage (directly or indirectly)
     }
     public void onMoved() {
-        // override if you are interested in move events
+        // override if you are interested in move events.
+        // Also called when an ancestor moves
     }
     public void onResized() {
         // override if you are interested in size events
     }
+    public void onFocusGained() {
+        // override if you are interested in keyboard focus
+    }
+    public void onFocusLost() {
+        // override if you are interested in keyboard focus
+    }
+    public void onKeyEvent(Keyboard.Event e) {
+        // override to receive key and char events while focused
+    }
     //====================================================================
     // Parent events
     //====================================================================
@@ -174,7 +241,13 @@ public class UIComponent {
         }
     }
     protected void fireUpdate(Frame frame) {
-        update(frame);
+        if(frame.profiler!=null) {
+            long t = System.nanoTime();
+            update(frame);
+            frame.profiler.addUpdate(this, System.nanoTime()-t);
+        } else {
+            update(frame);
+        }
 
         // Update children in reverse order
         for(int i = children.size()-1; i>=0; i--) {
@@ -182,21 +255,54 @@ public class UIComponent {
         }
     }
     protected void fireRender(Frame frame) {
-        render(frame);
+        if(frame.profiler!=null) {
+            long t = System.nanoTime();
+            render(frame);
+            frame.profiler.addRender(this, System.nanoTime()-t);
+        } else {
+            render(frame);
+        }
         for(var c : children) {
             c.fireRender(frame);
         }
     }
+    /**
+     * A component's cached position is only ever set if its parent's is,
+     * so there is nothing to clear below a component that has none.
+     */
+    private void clearAbsPos() {
+        if(absPos==null) return;
+        absPos = null;
+        for(var c : children) {
+            c.clearAbsPos();
+        }
+    }
+    private void fireOnMoved() {
+        onMoved();
+        for(var c : children) {
+            c.fireOnMoved();
+        }
+    }
+    /**package*/ List<UIComponent> childList() {
+        return children;
+    }
     private void fireOnAddedToStage() {
+        stage = parent.getStage();
+        stage.addToIndex(this);
         onAddedToStage();
         for(var c : children) {
             c.fireOnAddedToStage();
         }
     }
-    private void fireOnRemovedFromStage() {
+    private void fireOnRemovedFromStage(Stage from) {
+        if(from.getFocus()==this) from.setFocus(null);
+        from.removeFromIndex(this);
+        stage = null;
+        if(loads!=null) loads.cancel();
+        Events.get().removeListeners(this);
         onRemovedFromStage();
         for(var c : children) {
-            c.fireOnRemovedFromStage();
+            c.fireOnRemovedFromStage(from);
         }
     }
 }
@@ -1,23 +1,262 @@
 package juice.events;
 
+import juice.Keyboard;
 import juice.Lambda;
+import juice.Mouse;
+import juice.components.Stage;
+import juice.components.UIComponent;
 
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Finish me.
+ * Pushes mouse and keyboard events to listeners registered on components.
+ *
+ * Each mouse event is hit tested once against the stage to find its target,
+ * the top-most component under the mouse. It is then passed:
+ *  - CAPTURE: to the capture listeners of each ancestor, stage first
+ *  - TARGET:  to all listeners of the target
+ *  - BUBBLE:  to the bubble listeners of each ancestor, parent first
+ * Calling Mouse.Event.consume() stops it being passed on.
+ *
+ * Listeners usually capture their component, so they are removed when
+ * the component is removed from the stage. Add them in onAddedToStage()
+ * if the component can be added again. Call removeListeners() for a
+ * component that is never added to the stage.
+ *
+ * Keyboard events are only passed to the component with the keyboard
+ * focus (see Stage.setFocus): first to its key listeners and then to
+ * UIComponent.onKeyEvent.
+ *
+ * The Window dispatches every event before the stage update, so
+ * components that still read Frame.getLocalMouseEvents() only see the
+ * events that no listener consumed. Only use these from the render thread.
+ *
+ * Events is also an Executor for the render thread. Tasks can be posted
+ * from any thread and are run by the Window loop at the start of each
+ * frame, within Props.taskBudgetMs. Posting wakes the loop if it is
+ * waiting for events. Use this to change components or renderers from
+ * other threads.
  */
-final public class Events {
-    private static Events instance = null;
+final public class Events implements Executor {
+    public enum Phase { CAPTURE, TARGET, BUBBLE }
+
+    /** Created eagerly so that every thread sees the same instance */
+    private static final Events instance = new Events();
 
     public static Events get() {
-        if(instance == null) {
-            instance = new Events();
-        }
         return instance;
     }
     //=============================================================================
+    /** Listen for events on c and its descendants during the target and bubble phases. */
+    public void addMouseListener(UIComponent c, Mouse.EventType type, Lambda.AV<Mouse.Event> listener) {
+        addMouseListener(c, type, false, listener);
+    }
+    /**
+     * @param capture If true the listener is called during the capture phase,
+     *                before the target and its descendants see the event.
+     */
+    public void addMouseListener(UIComponent c, Mouse.EventType type, boolean capture, Lambda.AV<Mouse.Event> listener) {
+        var l = listeners.computeIfAbsent(c, k -> new Listeners());
+        l.get(type, capture).add(listener);
+    }
+    public void removeMouseListener(UIComponent c, Mouse.EventType type, Lambda.AV<Mouse.Event> listener) {
+        var l = listeners.get(c);
+        if(l==null) return;
+        l.get(type, false).remove(listener);
+        l.get(type, true).remove(listener);
+    }
+    /** Listen for key and char events while c has the keyboard focus. */
+    public void addKeyListener(UIComponent c, Lambda.AV<Keyboard.Event> listener) {
+        listeners.computeIfAbsent(c, k -> new Listeners()).keys.add(listener);
+    }
+    public void removeKeyListener(UIComponent c, Lambda.AV<Keyboard.Event> listener) {
+        var l = listeners.get(c);
+        if(l!=null) l.keys.remove(listener);
+    }
+    /** Remove all mouse and key listeners of c. */
+    public void removeListeners(UIComponent c) {
+        listeners.remove(c);
+    }
+    //=============================================================================
+    // Render thread tasks. These can be called from any thread
+    //=============================================================================
+    /** Run task on the render thread. Exceptions are printed and otherwise ignored. */
+    public void post(Runnable task) {
+        tasks.add(new Task(task));
+
+        // If the queue was not empty the loop has already been woken
+        var w = wakeup;
+        if(depth.getAndIncrement()==0 && w!=null) w.call();
+    }
+    @Override public void execute(Runnable task) {
+        post(task);
+    }
+    /** Run task on the render thread and complete the future with its result. */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        var f = new CompletableFuture<T>();
+        post(() -> {
+            if(f.isCancelled()) return;
+            try{
+                f.complete(task.call());
+            }catch(Throwable t) {
+                f.completeExceptionally(t);
+            }
+        });
+        return f;
+    }
+    public CompletableFuture<Void> submit(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+    /** Number of tasks waiting to run. */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+    public long getNumTasksRun() {
+        return numRun;
+    }
+    /** Mean time from posting a task to it starting to run. */
+    public double getMeanLatencyMs() {
+        long n = numRun;
+        return n==0 ? 0 : totalLatency * 1e-6 / n;
+    }
+    public double getMaxLatencyMs() {
+        return maxLatency * 1e-6;
+    }
+    public void resetTaskMetrics() {
+        numRun       = 0;
+        totalLatency = 0;
+        maxLatency   = 0;
+    }
+    /** Called when a task is posted. The Window uses this to wake its loop. */
+    public void setWakeup(Lambda.V wakeup) {
+        this.wakeup = wakeup;
+    }
+    /**
+     * Run queued tasks on the render thread. Stops once budgetNsecs has been
+     * used but always runs at least one task so the queue makes progress.
+     * Tasks posted while draining wait for the next call.
+     * @return The number of tasks run.
+     */
+    public int runTasks(long budgetNsecs) {
+        long start = System.nanoTime();
+        int limit  = depth.get();
+        int count  = 0;
+        Task t;
+        while(count < limit && (t = tasks.poll()) != null) {
+            depth.decrementAndGet();
+
+            long now     = System.nanoTime();
+            long latency = now - t.posted;
+            totalLatency += latency;
+            maxLatency    = Math.max(maxLatency, latency);
+            numRun++;
+            count++;
+
+            try{
+                t.runnable.run();
+            }catch(Throwable e) {
+                System.err.println("Posted task failed: " + e);
+                e.printStackTrace();
+            }
+            if(System.nanoTime()-start >= budgetNsecs) break;
+        }
+        return count;
+    }
+    //=============================================================================
+    /** Pass e to the focused component, if there is one. */
+    public void dispatch(Stage stage, Keyboard.Event e) {
+        var focus = stage.getFocus();
+        if(focus==null) return;
+
+        var l = listeners.get(focus);
+        if(l!=null && !l.keys.isEmpty()) {
+            for(var listener : new ArrayList<>(l.keys)) {
+                listener.call(e);
+                if(e.isConsumed()) return;
+            }
+        }
+        focus.onKeyEvent(e);
+    }
+    /** Route e to the listeners along the path from the stage to its target. */
+    public void dispatch(Stage stage, Mouse.Event e) {
+        var target = stage.hitTest(e.pos);
+        if(target==null) target = stage;
+        e.target = target;
+        if(listeners.isEmpty()) return;
+
+        path.clear();
+        for(var c = target; c!=null; c = c.getParent()) {
+            path.add(c);
+        }
+
+        for(int i=path.size()-1; i>0 && !e.isConsumed(); i--) {
+            fire(path.get(i), e, Phase.CAPTURE, true);
+        }
+        if(!e.isConsumed()) fire(target, e, Phase.TARGET, true);
+        if(!e.isConsumed()) fire(target, e, Phase.TARGET, false);
+        for(int i=1; i<path.size() && !e.isConsumed(); i++) {
+            fire(path.get(i), e, Phase.BUBBLE, false);
+        }
+
+        e.currentTarget = null;
+        e.phase         = null;
+        path.clear();
+    }
+    //=============================================================================
+    private static final class Listeners {
+        Map<Mouse.EventType, List<Lambda.AV<Mouse.Event>>> bubble  = new EnumMap<>(Mouse.EventType.class);
+        Map<Mouse.EventType, List<Lambda.AV<Mouse.Event>>> capture = new EnumMap<>(Mouse.EventType.class);
+        List<Lambda.AV<Keyboard.Event>> keys = new ArrayList<>();
+
+        List<Lambda.AV<Mouse.Event>> get(Mouse.EventType type, boolean isCapture) {
+            return (isCapture ? capture : bubble).computeIfAbsent(type, k -> new ArrayList<>());
+        }
+        List<Lambda.AV<Mouse.Event>> find(Mouse.EventType type, boolean isCapture) {
+            return (isCapture ? capture : bubble).get(type);
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long posted = System.nanoTime();
+        Task(Runnable r) { this.runnable = r; }
+    }
+
     private Events() {}
 
-    private ConcurrentLinkedDeque<Lambda.AV> queue = new ConcurrentLinkedDeque<>();
+    /** Lock-free. Many threads post, only the render thread polls */
+    private ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private AtomicInteger depth = new AtomicInteger();
+    private volatile Lambda.V wakeup;
+    private volatile long numRun, totalLatency, maxLatency;
+
+    private Map<UIComponent, Listeners> listeners = new IdentityHashMap<>();
+    private List<UIComponent> path = new ArrayList<>();
+
+    private void fire(UIComponent c, Mouse.Event e, Phase phase, boolean capture) {
+        var l = listeners.get(c);
+        if(l==null) return;
+        var list = l.find(e.type, capture);
+        if(list==null || list.isEmpty()) return;
+
+        e.currentTarget = c;
+        e.phase         = phase;
+        // Copy so that listeners can add or remove listeners
+        for(var listener : new ArrayList<>(list)) {
+            listener.call(e);
+            if(e.isConsumed()) return;
+        }
+    }
 }
@@ -0,0 +1,499 @@
+package juice.graphics;
+
+import juice.types.Int2;
+import juice.types.RGBA;
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.BufferUtils.createByteBuffer;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL32.glDrawElementsBaseVertex;
+
+/**
+ * Collects the primitives of all renderers during a frame and draws them
+ * with as few draw calls as possible.
+ *
+ * Every primitive is a quad using a single vertex format and shader so quads
+ * from different renderers can share a draw call. Quads are grouped into
+ * batches by texture and blend state. A submission is only moved into an
+ * earlier batch if it does not overlap anything drawn in between so paint
+ * order is preserved.
+ *
+ *  batch.begin(camera.VP());
+ *  // renderers submit via render(batch)
+ *  batch.flush();
+ *
+ * Vertices are streamed through a StreamingVBO so each frame writes
+ * straight into mapped memory that the GPU is not currently reading.
+ *
+ * Glyphs are read from the GlyphAtlas which stays bound to texture unit 1
+ * so text never breaks a batch.
+ */
+final public class BatchRenderer {
+    public enum Blend { ALPHA, ADDITIVE }
+
+    private static final int MODE_COLOUR      = 0;
+    private static final int MODE_TEXTURE     = 1;
+    private static final int MODE_TEXT        = 2;
+    private static final int MODE_TEXT_SHADOW = 3;
+    private static final int MODE_ROUND_RECT  = 4;
+
+    private static final int VERTEX_SIZE = 2 * 4 +     // pos
+                                           2 * 4 +     // uv
+                                           4 * 4 +     // colour
+                                           4 * 4 +     // rect pos and size
+                                           4 * 4;      // radius, mode, text size, glyph layer
+    private static final int QUAD_SIZE   = VERTEX_SIZE * 4;
+
+    /** How many batches back a submission may be moved. */
+    private static final int LOOKBACK = 16;
+
+    private VAO vao;
+    private StreamingVBO stream;
+    private VBO ibo;
+    private ByteBuffer staging;
+    private GLShaderProgram prog;
+    private Matrix4f viewProj;
+    private Blend blend = Blend.ALPHA;
+    private int indexCapacity;
+
+    private List<Command> commands = new ArrayList<>();
+    private int numCommands;
+    private List<Batch> batches = new ArrayList<>();
+    private int numBatches;
+    private GPUTimings.Timer gpuTimer = GPUTimings.timer(this);
+    private int numQuads;
+
+    private int drawCalls, stateChanges;
+
+    /** A run of consecutive quads submitted with the same state. */
+    private static final class Command {
+        int texture;
+        Blend blend;
+        int firstQuad, numQuads;
+        float minX, minY, maxX, maxY;
+    }
+    /** A set of commands drawn with a single draw call. */
+    private static final class Batch {
+        int texture;
+        Blend blend;
+        List<Command> commands = new ArrayList<>();
+        int firstQuad, numQuads;
+        float minX, minY, maxX, maxY;
+    }
+    //====================================================================
+    public int getDrawCalls() { return drawCalls; }
+    public int getStateChanges() { return stateChanges; }
+    public int getNumQuads() { return numQuads; }
+    /** Number of frames that blocked waiting for the GPU to release a streaming segment. */
+    public int getStreamWaits() { return stream==null ? 0 : stream.getNumWaits(); }
+
+    public BatchRenderer() {
+        this.vao  = new VAO();
+        this.prog = GLShaderProgram.get(VS, FS);
+
+        prog.use().setUniform("SAMPLER0", 0)
+                  .setUniform("GLYPHS", 1);
+
+        this.staging = createByteBuffer(QUAD_SIZE * 256);
+    }
+    public void destroy() {
+        if(stream!=null) stream.destroy();
+        if(ibo!=null) ibo.destroy();
+        vao.destroy();
+        prog.release();
+        gpuTimer.destroy();
+    }
+    /** Start collecting primitives for a new frame. */
+    public BatchRenderer begin(Matrix4f viewProj) {
+        this.viewProj = viewProj;
+        this.blend    = Blend.ALPHA;
+        numCommands   = 0;
+        numQuads      = 0;
+        drawCalls     = 0;
+        stateChanges  = 0;
+        staging.clear();
+        return this;
+    }
+    /** Set the blend state used by subsequent submissions. */
+    public BatchRenderer blend(Blend b) {
+        this.blend = b;
+        return this;
+    }
+    //====================================================================
+    /**
+     * A coloured quad with vertices in clockwise order:
+     *
+     * 0-1
+     * | |
+     * 3-2
+     */
+    public BatchRenderer colourQuad(Int2 p0, Int2 p1, Int2 p2, Int2 p3,
+                                    RGBA c0, RGBA c1, RGBA c2, RGBA c3)
+    {
+        command(0, p0.getX(), p0.getY(), p1.getX(), p1.getY(), p2.getX(), p2.getY(), p3.getX(), p3.getY());
+
+        vertex(p0.getX(), p0.getY(), 0, 0, c0, 0,0,0,0, 0, MODE_COLOUR, 0);
+        vertex(p3.getX(), p3.getY(), 0, 0, c3, 0,0,0,0, 0, MODE_COLOUR, 0);
+        vertex(p1.getX(), p1.getY(), 0, 0, c1, 0,0,0,0, 0, MODE_COLOUR, 0);
+        vertex(p2.getX(), p2.getY(), 0, 0, c2, 0,0,0,0, 0, MODE_COLOUR, 0);
+        return this;
+    }
+    /**
+     * A rectangle with rounded corners. Colours and radii are in
+     * clockwise order starting at the top left.
+     */
+    public BatchRenderer roundRect(Int2 pos, Int2 size, RGBA[] colour, float[] radius) {
+        float x = pos.getX(), y = pos.getY(), w = size.getX(), h = size.getY();
+
+        command(0, x, y, x+w, y, x+w, y+h, x, y+h);
+
+        vertex(x,   y,   0, 0, colour[0], x,y,w,h, radius[0], MODE_ROUND_RECT, 0);
+        vertex(x,   y+h, 0, 0, colour[3], x,y,w,h, radius[3], MODE_ROUND_RECT, 0);
+        vertex(x+w, y,   0, 0, colour[1], x,y,w,h, radius[1], MODE_ROUND_RECT, 0);
+        vertex(x+w, y+h, 0, 0, colour[2], x,y,w,h, radius[2], MODE_ROUND_RECT, 0);
+        return this;
+    }
+    /** A textured quad modulated by colour. */
+    public BatchRenderer texturedQuad(Texture t, float x, float y, float w, float h,
+                                      float u, float v, float u2, float v2, RGBA colour)
+    {
+        command(t.id, x, y, x+w, y, x+w, y+h, x, y+h);
+
+        vertex(x,   y,   u,  v,  colour, 0,0,0,0, 0, MODE_TEXTURE, 0);
+        vertex(x,   y+h, u,  v2, colour, 0,0,0,0, 0, MODE_TEXTURE, 0);
+        vertex(x+w, y,   u2, v,  colour, 0,0,0,0, 0, MODE_TEXTURE, 0);
+        vertex(x+w, y+h, u2, v2, colour, 0,0,0,0, 0, MODE_TEXTURE, 0);
+        return this;
+    }
+    /** A signed distance field glyph from the GlyphAtlas. */
+    public BatchRenderer glyph(float x, float y, float w, float h,
+                               float u, float v, float u2, float v2, int layer, RGBA colour, float size)
+    {
+        command(0, x, y, x+w, y, x+w, y+h, x, y+h);
+
+        vertex(x,   y,   u,  v,  colour, 0,0,0,0, 0, MODE_TEXT, size, layer);
+        vertex(x,   y+h, u,  v2, colour, 0,0,0,0, 0, MODE_TEXT, size, layer);
+        vertex(x+w, y,   u2, v,  colour, 0,0,0,0, 0, MODE_TEXT, size, layer);
+        vertex(x+w, y+h, u2, v2, colour, 0,0,0,0, 0, MODE_TEXT, size, layer);
+        return this;
+    }
+    /** The drop shadow of a signed distance field glyph. The offset is in atlas uv units. */
+    public BatchRenderer glyphShadow(float x, float y, float w, float h,
+                                     float u, float v, float u2, float v2, int layer,
+                                     RGBA colour, float size, float offsetU, float offsetV)
+    {
+        command(0, x, y, x+w, y, x+w, y+h, x, y+h);
+
+        u -= offsetU; u2 -= offsetU;
+        v -= offsetV; v2 -= offsetV;
+
+        vertex(x,   y,   u,  v,  colour, 0,0,0,0, 0, MODE_TEXT_SHADOW, size, layer);
+        vertex(x,   y+h, u,  v2, colour, 0,0,0,0, 0, MODE_TEXT_SHADOW, size, layer);
+        vertex(x+w, y,   u2, v,  colour, 0,0,0,0, 0, MODE_TEXT_SHADOW, size, layer);
+        vertex(x+w, y+h, u2, v2, colour, 0,0,0,0, 0, MODE_TEXT_SHADOW, size, layer);
+        return this;
+    }
+    //====================================================================
+    /** Sort the collected primitives into batches and draw them. */
+    public void flush() {
+        if(numCommands==0) return;
+
+        buildBatches();
+        uploadBatches();
+
+        gpuTimer.begin();
+        vao.bind();
+        prog.use().setUniform("VP", viewProj);
+        GlyphAtlas.bind(1);
+        glActiveTexture(GL_TEXTURE0 + 0);
+        stateChanges += 2;
+
+        int boundTexture = -1;
+        Blend boundBlend = null;
+
+        for(int i=0; i<numBatches; i++) {
+            var b = batches.get(i);
+
+            if(b.blend!=boundBlend) {
+                boundBlend = b.blend;
+                if(b.blend==Blend.ADDITIVE) {
+                    glBlendFunc(GL_SRC_ALPHA, GL_ONE);
+                } else {
+                    glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+                }
+                stateChanges++;
+            }
+            if(b.texture!=0 && b.texture!=boundTexture) {
+                boundTexture = b.texture;
+                glBindTexture(GL_TEXTURE_2D, b.texture);
+                stateChanges++;
+            }
+
+            glDrawElementsBaseVertex(GL_TRIANGLES, b.numQuads * 6, GL_UNSIGNED_INT,
+                                     (long)b.firstQuad * 6 * 4, stream.getBaseVertex());
+            drawCalls++;
+            DrawStats.drawCall();
+        }
+        stream.fence();
+
+        if(boundBlend!=Blend.ALPHA) {
+            glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        }
+        gpuTimer.end();
+        numCommands = 0;
+    }
+    //====================================================================
+    private void command(int texture, float x0, float y0, float x1, float y1,
+                                      float x2, float y2, float x3, float y3)
+    {
+        float minX = Math.min(Math.min(x0, x1), Math.min(x2, x3));
+        float minY = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+        float maxX = Math.max(Math.max(x0, x1), Math.max(x2, x3));
+        float maxY = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+
+        Command c = numCommands==0 ? null : commands.get(numCommands-1);
+
+        if(c==null || c.blend!=blend || (texture!=0 && c.texture!=0 && c.texture!=texture)) {
+            if(numCommands==commands.size()) commands.add(new Command());
+            c = commands.get(numCommands++);
+            c.texture   = texture;
+            c.blend     = blend;
+            c.firstQuad = numQuads;
+            c.numQuads  = 0;
+            c.minX = minX; c.minY = minY;
+            c.maxX = maxX; c.maxY = maxY;
+        } else {
+            if(c.texture==0) c.texture = texture;
+            c.minX = Math.min(c.minX, minX); c.minY = Math.min(c.minY, minY);
+            c.maxX = Math.max(c.maxX, maxX); c.maxY = Math.max(c.maxY, maxY);
+        }
+        c.numQuads++;
+        numQuads++;
+
+        if(staging.remaining() < QUAD_SIZE) {
+            var b = createByteBuffer(staging.capacity()*2);
+            staging.flip();
+            b.put(staging);
+            staging = b;
+        }
+    }
+    private void vertex(float x, float y, float u, float v, RGBA c,
+                        float rx, float ry, float rw, float rh,
+                        float radius, int mode, float size)
+    {
+        vertex(x, y, u, v, c, rx, ry, rw, rh, radius, mode, size, 0);
+    }
+    private void vertex(float x, float y, float u, float v, RGBA c,
+                        float rx, float ry, float rw, float rh,
+                        float radius, int mode, float size, int layer)
+    {
+        staging.putFloat(x).putFloat(y)
+               .putFloat(u).putFloat(v)
+               .putFloat(c.r).putFloat(c.g).putFloat(c.b).putFloat(c.a)
+               .putFloat(rx).putFloat(ry).putFloat(rw).putFloat(rh)
+               .putFloat(radius).putFloat(mode).putFloat(size).putFloat(layer);
+    }
+    /**
+     * Assign each command to a batch. A command joins the most recent
+     * compatible batch as long as it does not overlap any batch that
+     * would otherwise be drawn after it.
+     */
+    private void buildBatches() {
+        numBatches = 0;
+
+        for(int i=0; i<numCommands; i++) {
+            var c      = commands.get(i);
+            Batch into = null;
+
+            for(int j=numBatches-1; j>=0 && j>=numBatches-LOOKBACK; j--) {
+                var b = batches.get(j);
+                if(isCompatible(b, c)) {
+                    into = b;
+                    break;
+                }
+                if(overlaps(b, c)) break;
+            }
+            if(into==null) {
+                if(numBatches==batches.size()) batches.add(new Batch());
+                into = batches.get(numBatches++);
+                into.commands.clear();
+                into.texture = 0;
+                into.blend   = c.blend;
+                into.minX = c.minX; into.minY = c.minY;
+                into.maxX = c.maxX; into.maxY = c.maxY;
+            }
+            if(into.texture==0) into.texture = c.texture;
+            into.commands.add(c);
+            into.minX = Math.min(into.minX, c.minX); into.minY = Math.min(into.minY, c.minY);
+            into.maxX = Math.max(into.maxX, c.maxX); into.maxY = Math.max(into.maxY, c.maxY);
+        }
+    }
+    private static boolean isCompatible(Batch b, Command c) {
+        return b.blend==c.blend && (b.texture==0 || c.texture==0 || b.texture==c.texture);
+    }
+    private static boolean overlaps(Batch b, Command c) {
+        return c.minX < b.maxX && c.maxX > b.minX &&
+               c.minY < b.maxY && c.maxY > b.minY;
+    }
+    /** Copy the quads of each batch into the next streaming segment. */
+    private void uploadBatches() {
+        int bytesRequired = numQuads * QUAD_SIZE;
+
+        vao.bind();
+
+        if(stream == null) {
+            stream = new StreamingVBO(VERTEX_SIZE, Math.max(bytesRequired, QUAD_SIZE * 256));
+            vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
+            vao.enableAttrib(1, 2, GL_FLOAT, false, VERTEX_SIZE, 2*4);
+            vao.enableAttrib(2, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4);
+            vao.enableAttrib(3, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4 + 4*4);
+            vao.enableAttrib(4, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4 + 4*4 + 4*4);
+        }
+
+        var upload = stream.map(bytesRequired);
+        int quad = 0;
+        for(int i=0; i<numBatches; i++) {
+            var b = batches.get(i);
+            b.firstQuad = quad;
+            for(var c : b.commands) {
+                var src = staging.duplicate();
+                src.limit((c.firstQuad + c.numQuads) * QUAD_SIZE);
+                src.position(c.firstQuad * QUAD_SIZE);
+                upload.put(src);
+                quad += c.numQuads;
+            }
+            b.numQuads = quad - b.firstQuad;
+        }
+        stream.unmap();
+
+        populateIbo();
+    }
+    /**
+     * Every quad uses the same index pattern:
+     *
+     * 0--2
+     * | /|
+     * |/ |
+     * 1--3
+     */
+    private void populateIbo() {
+        if(numQuads <= indexCapacity) return;
+
+        int capacity = Math.max(numQuads, indexCapacity*2);
+        int bytesRequired = capacity * 6 * 4;
+        var indices = createByteBuffer(bytesRequired);
+
+        for(int i=0; i<capacity; i++) {
+            int v = i*4;
+            indices.putInt(v).putInt(v+1).putInt(v+2)
+                   .putInt(v+2).putInt(v+1).putInt(v+3);
+        }
+        indices.flip();
+
+        if(ibo == null) {
+            ibo = VBO.makeElements(bytesRequired, GL_STATIC_DRAW);
+        } else {
+            ibo.bind();
+            ibo.realloc(bytesRequired, GL_STATIC_DRAW);
+        }
+        ibo.addData(indices);
+        indexCapacity = capacity;
+    }
+    //====================================================================
+    private static final String VS =
+        "#version 330 core\n" +
+        "" +
+        "    layout(location = 0) in vec2 pos;" +
+        "    layout(location = 1) in vec2 uv;" +
+        "    layout(location = 2) in vec4 colour;" +
+        "    layout(location = 3) in vec4 rectPosAndSize;" +
+        "    layout(location = 4) in vec4 params;" +
+        "" +
+        "    uniform mat4 VP;" +
+        "" +
+        "    out VS_OUT {" +
+        "        vec2 pixelPos;" +
+        "        vec2 uv;" +
+        "        vec4 colour;" +
+        "        flat vec4 rectPosAndSize;" +
+        "        float radius;" +
+        "        flat int mode;" +
+        "        flat float size;" +
+        "        flat float layer;" +
+        "    } vs_out;" +
+        "" +
+        "    void main() {" +
+        "        gl_Position           = VP * vec4(pos,0,1);" +
+        "        vs_out.pixelPos       = pos;" +
+        "        vs_out.uv             = uv;" +
+        "        vs_out.colour         = colour;" +
+        "        vs_out.rectPosAndSize = rectPosAndSize;" +
+        "        vs_out.radius         = params.x;" +
+        "        vs_out.mode           = int(params.y);" +
+        "        vs_out.size           = params.z;" +
+        "        vs_out.layer          = params.w;" +
+        "    }" +
+        "";
+    private static final String FS =
+        "#version 330 core\n" +
+        "\n" +
+        "    in VS_OUT {\n" +
+        "        vec2 pixelPos;\n" +
+        "        vec2 uv;\n" +
+        "        vec4 colour;\n" +
+        "        flat vec4 rectPosAndSize;\n" +
+        "        float radius;\n" +
+        "        flat int mode;\n" +
+        "        flat float size;\n" +
+        "        flat float layer;\n" +
+        "    } fs_in;\n" +
+        "\n" +
+        "    out vec4 color;\n" +
+        "    uniform sampler2D SAMPLER0;\n" +
+        "    uniform sampler2DArray GLYPHS;\n" +
+        "\n" +
+        "    vec4 roundRect() {\n" +
+        "        vec2 pos  = fs_in.pixelPos-fs_in.rectPosAndSize.xy;\n" +
+        "        vec2 size = fs_in.rectPosAndSize.zw;\n" +
+        "        vec2 mid  = size/2;\n" +
+        "        vec2 top  = vec2(fs_in.radius,fs_in.radius);\n" +
+        "        float alpha = fs_in.colour.a;\n" +
+        "\n" +
+        "        if(pos.x>mid.x) pos.x = size.x-pos.x;\n" +
+        "        if(pos.y>mid.y) pos.y = size.y-pos.y;\n" +
+        "\n" +
+        "        if(pos.x<fs_in.radius && pos.y<fs_in.radius) {\n" +
+        "            // we are in a corner\n" +
+        "            float v = fs_in.radius-distance(pos, top);\n" +
+        "            alpha   = clamp(v, 0, alpha);\n" +
+        "        }\n" +
+        "        return vec4(fs_in.colour.rgb, alpha);\n" +
+        "    }\n" +
+        "\n" +
+        "    void main() {\n" +
+        "        if(fs_in.mode==0) {\n" +
+        "            color = fs_in.colour;\n" +
+        "        } else if(fs_in.mode==1) {\n" +
+        "            color = texture(SAMPLER0, fs_in.uv) * fs_in.colour;\n" +
+        "        } else if(fs_in.mode==2) {\n" +
+        "            float smoothing = (1.0 / (0.25*fs_in.size));\n" +
+        "            float distance  = texture(GLYPHS, vec3(fs_in.uv, fs_in.layer)).a;\n" +
+        "            float alpha     = smoothstep(0.5 - smoothing, 0.5 + smoothing, distance);\n" +
+        "            color           = vec4(fs_in.colour.rgb, fs_in.colour.a * alpha);\n" +
+        "        } else if(fs_in.mode==3) {\n" +
+        "            float smoothing = (1.0 / (0.25*fs_in.size)) * fs_in.size / 12;\n" +
+        "            float distance  = texture(GLYPHS, vec3(fs_in.uv, fs_in.layer)).a;\n" +
+        "            float alpha     = smoothstep(0.5 - smoothing, 0.5 + smoothing, distance);\n" +
+        "            color           = vec4(fs_in.colour.rgb, fs_in.colour.a * alpha);\n" +
+        "        } else {\n" +
+        "            color = roundRect();\n" +
+        "        }\n" +
+        "    }";
+}
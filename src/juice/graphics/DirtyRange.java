@@ -0,0 +1,92 @@
+package juice.graphics;
+
+/**
+ * Tracks the half open ranges [from, to) of slots that need to be
+ * rewritten and re-uploaded to a VBO.
+ *
+ * Ranges are kept sorted and only merged when they overlap or touch,
+ * so edits far apart do not re-upload everything in between. If more
+ * than MAX_RANGES build up the two closest are merged.
+ */
+final class DirtyRange {
+    static final int MAX_RANGES = 8;
+
+    private int[] starts = new int[MAX_RANGES+1];
+    private int[] ends   = new int[MAX_RANGES+1];
+    private int count;
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+    /** Number of separate ranges */
+    int size() {
+        return count;
+    }
+    int from(int i) {
+        return starts[i];
+    }
+    int to(int i) {
+        return ends[i];
+    }
+    void mark(int index) {
+        mark(index, index+1);
+    }
+    void mark(int from, int to) {
+        if(from >= to) return;
+
+        // Skip the ranges that end before this one, then absorb every range it overlaps or touches
+        int i = 0;
+        while(i < count && ends[i] < from) i++;
+        int j = i;
+        while(j < count && starts[j] <= to) {
+            from = Math.min(from, starts[j]);
+            to   = Math.max(to, ends[j]);
+            j++;
+        }
+
+        if(j == i) {
+            System.arraycopy(starts, i, starts, i+1, count-i);
+            System.arraycopy(ends, i, ends, i+1, count-i);
+            count++;
+        } else if(j > i+1) {
+            System.arraycopy(starts, j, starts, i+1, count-j);
+            System.arraycopy(ends, j, ends, i+1, count-j);
+            count -= j-i-1;
+        }
+        starts[i] = from;
+        ends[i]   = to;
+
+        if(count > MAX_RANGES) mergeClosest();
+    }
+    void markAll(int size) {
+        mark(0, size);
+    }
+    /** Slot index has been removed. Shift the later ranges down so they still cover the same items. */
+    void remove(int index) {
+        int n = 0;
+        for(int i=0; i<count; i++) {
+            int from = starts[i] > index ? starts[i]-1 : starts[i];
+            int to   = ends[i] > index ? ends[i]-1 : ends[i];
+            if(from < to) {
+                starts[n] = from;
+                ends[n]   = to;
+                n++;
+            }
+        }
+        count = n;
+    }
+    void clear() {
+        count = 0;
+    }
+    //====================================================================================
+    private void mergeClosest() {
+        int best = 0;
+        for(int i=1; i<count-1; i++) {
+            if(starts[i+1]-ends[i] < starts[best+1]-ends[best]) best = i;
+        }
+        ends[best] = ends[best+1];
+        System.arraycopy(starts, best+2, starts, best+1, count-best-2);
+        System.arraycopy(ends, best+2, ends, best+1, count-best-2);
+        count--;
+    }
+}
@@ -0,0 +1,20 @@
+package juice.graphics;
+
+/**
+ * Counts the draw calls issued by the renderers. Only used from the
+ * render thread.
+ */
+public final class DrawStats {
+    private static int drawCalls;
+
+    public static int getDrawCalls() {
+        return drawCalls;
+    }
+    public static void drawCall() {
+        drawCalls++;
+    }
+    /** Call at the start of each frame. */
+    public static void reset() {
+        drawCalls = 0;
+    }
+}
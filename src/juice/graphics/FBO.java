@@ -0,0 +1,51 @@
+package juice.graphics;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * An offscreen RGBA8 colour buffer.
+ */
+public final class FBO {
+    private int id, texture;
+    public final int width, height;
+
+    public FBO(int width, int height) {
+        this.width   = width;
+        this.height  = height;
+        this.texture = glGenTextures();
+        this.id      = glGenFramebuffers();
+
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer)null);
+
+        bind();
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+        if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer is incomplete");
+        }
+        unbind();
+    }
+    public void destroy() {
+        glDeleteFramebuffers(id);
+        glDeleteTextures(texture);
+    }
+    public FBO bind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, id);
+        return this;
+    }
+    public void unbind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+    /** Copy the whole buffer to the default framebuffer. Leaves the default framebuffer bound. */
+    public void blitToScreen() {
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, id);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+}
@@ -2,24 +2,29 @@ package juice.graphics;
 
 import juice.Lambda.AAR;
 import juice.Lambda.AR;
+import juice.Resources;
 import juice.types.Float2;
 import juice.types.Int2;
 import juice.types.Rect;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 final public class Font {
     public String name;
     public int size, width, height, lineHeight;
     public Page page;
-    public Texture texture;
+    /** Ratio of the page size to the glyph atlas layer size. Scales page relative uv offsets. */
+    public float uvScale;
 
     @Override public String toString() {
         return String.format("[Font %s size: %d width:%d height:%d chars:%d kernings:%d]",
-                             name, size, width, height, page.chars.size(), page.kernings.size());
+                             name, size, width, height, page.getNumChars(), page.getNumKernings());
     }
     public Int2 centreText(String text, float size, Int2 mid) {
         var x = (int)getDimension(text, size).getX() / 2;
@@ -61,24 +66,59 @@ final public class Font {
 
     public static final class Char {
         public int id;
-        public float u, v, u2, v2;
+        public int layer;               // glyph atlas layer
+        public float u, v, u2, v2;      // glyph atlas uvs
         public int width, height;
         public int xoffset, yoffset;
         public int xadvance;
+        int x, y, page;                 // position within the BMFont page
     };
+    /** Glyphs and kernings in sorted primitive tables, searched with a binary search */
     public static final class Page {
-        Map<Integer,Char> chars     = new HashMap<>();
-        Map<Long, Integer> kernings = new HashMap<>(); /// key = (from<<32 | to)
+        int[] ids      = new int[0];    /// sorted
+        Char[] chars   = new Char[0];   /// same order as ids
+        long[] kernKeys   = new long[0];  /// sorted, key = (from<<32 | to)
+        int[] kernAmounts = new int[0];
+        private Char[] latin1 = new Char[256];
+        private Char space;
 
         public int getKerning(int from, int to) {
-            var k = kernings.get(((long)from) << 32 | to);
-            if(k == null) k = 0;
-            return k;
+            if(kernKeys.length == 0) return 0;
+            int i = Arrays.binarySearch(kernKeys, ((long)from) << 32 | to);
+            return i < 0 ? 0 : kernAmounts[i];
         }
         public Char getChar(int ch) {
-            var c = chars.get(ch);
-            if(c==null) c = chars.get(' ');
-            return c;
+            Char c = null;
+            if(ch >= 0 && ch < latin1.length) {
+                c = latin1[ch];
+            } else {
+                int i = Arrays.binarySearch(ids, ch);
+                if(i >= 0) c = chars[i];
+            }
+            return c==null ? space : c;
+        }
+        public int getNumChars() {
+            return chars.length;
+        }
+        public int getNumKernings() {
+            return kernKeys.length;
+        }
+        /** @param sorted Chars in id order */
+        void setChars(Char[] sorted) {
+            chars  = sorted;
+            ids    = new int[sorted.length];
+            latin1 = new Char[256];
+            for(int i=0; i<sorted.length; i++) {
+                var c  = sorted[i];
+                ids[i] = c.id;
+                if(c.id >= 0 && c.id < latin1.length) latin1[c.id] = c;
+            }
+            space = getChar(' ');
+        }
+        /** @param keys Sorted keys */
+        void setKernings(long[] keys, int[] amounts) {
+            kernKeys    = keys;
+            kernAmounts = amounts;
         }
     }
 
@@ -86,6 +126,14 @@ final public class Font {
     public static void setDirectory(String directory) {
         Font.directory = directory + (directory.endsWith("/") ? "" : "/");
     }
+    /**
+     * If true (the default) fonts are loaded from a binary cache file next
+     * to the .fnt file, which is regenerated whenever the .fnt is newer.
+     * See FontCache.
+     */
+    public static void setUseBinaryCache(boolean flag) {
+        Font.useBinaryCache = flag;
+    }
     public static void destroy() {
         for(var e : map.entrySet()) {
 
@@ -94,24 +142,86 @@ final public class Font {
     public static Font get(String name) {
         Font f = map.get(name);
         if(f==null) {
-            f = load(name);
+            f = pack(parse(directory, name));
             map.put(name, f);
         }
         return f;
     }
+    /**
+     * Read the .fnt file and decode its pages on a Resources worker. Only
+     * the glyph atlas upload runs on the render thread. Requests for a font
+     * that is already loading share the one load. Call from the render thread.
+     */
+    public static CompletableFuture<Font> getAsync(String name) {
+        Font f = map.get(name);
+        if(f!=null) return CompletableFuture.completedFuture(f);
+
+        var load = loading.get(name);
+        if(load==null) {
+            final String dir = directory;
+            load = Resources.load(() -> parse(dir, name), parsed -> {
+                // get() may have loaded it in the meantime
+                var font = map.get(name);
+                if(font==null) {
+                    font = pack(parsed);
+                    map.put(name, font);
+                }
+                return font;
+            });
+            loading.put(name, load);
+            load.whenComplete((r, e) -> loading.remove(name));
+        }
+        // Copy so that one caller cancelling does not cancel the others
+        return load.copy();
+    }
     //====================================================================================
     private static String directory     = "./";
     private static Map<String,Font> map = new HashMap<>();
-    private static final int BM_WIDTH   = 512;
+    private static Map<String,CompletableFuture<Font>> loading = new HashMap<>();
+    private static volatile boolean useBinaryCache = true;
 
-    private static Font load(String name) {
-        Font f    = new Font();
-        f.name    = name;
-        f.texture = Texture.get(directory, name+".png", Texture.standardAttribs);
-        f.page    = readPage(f, name);
-        return f;
+    /** A parsed font whose pages have not been added to the glyph atlas yet */
+    private static final class Parsed {
+        Font font;
+        Map<Integer,Texture.Pixels> pixels = new HashMap<>();
+    }
+    /** CPU side of loading. Safe to call from any thread. */
+    private static Parsed parse(String directory, String name) {
+        var p       = new Parsed();
+        p.font      = new Font();
+        p.font.name = name;
+
+        var files = useBinaryCache ? FontCache.load(p.font, directory, name)
+                                   : readText(p.font, directory, name);
+        for(var e : files.entrySet()) {
+            p.pixels.put(e.getKey(), Texture.readPixels(directory, e.getValue()));
+        }
+        return p;
     }
-    private static Page readPage(Font font, String name) {
+    /** Add the pages to the glyph atlas and convert glyph positions to atlas uvs. */
+    private static Font pack(Parsed p) {
+        var regions = new HashMap<Integer,GlyphAtlas.Region>();
+        for(var e : p.pixels.entrySet()) {
+            var pixels = e.getValue();
+            regions.put(e.getKey(), GlyphAtlas.add(pixels.width, pixels.height, pixels.data));
+        }
+        final float S = GlyphAtlas.LAYER_SIZE;
+        for(var c : p.font.page.chars) {
+            var r   = regions.get(c.page);
+            c.layer = r.layer;
+            c.u     = (r.x + c.x) / S;
+            c.v     = (r.y + c.y) / S;
+            c.u2    = (r.x + c.x + c.width - 1) / S;
+            c.v2    = (r.y + c.y + c.height - 1) / S;
+        }
+        p.font.uvScale = p.font.width / S;
+        return p.font;
+    }
+    /**
+     * Parse a text BMFont file into font.
+     * @return The page image filenames by page id.
+     */
+    static Map<Integer,String> readText(Font font, String directory, String name) {
         AAR<String,Integer,String> getFirstToken = (line, offset)-> {
             var p = offset;
             while(p<line.length() && line.charAt(p)>32) p++;
@@ -133,22 +243,21 @@ final public class Font {
                 var pair = it.split("=");
                 map.put(pair[0], pair[1]);
             }
-            float x    = Float.valueOf(map.get("x"));
-            float y    = Float.valueOf(map.get("y"));
+            c.x        = Integer.valueOf(map.get("x"));
+            c.y        = Integer.valueOf(map.get("y"));
+            c.page     = Integer.valueOf(map.getOrDefault("page", "0"));
             c.id       = Integer.valueOf(map.get("id"));
             c.width    = Integer.valueOf(map.get("width"));
             c.height   = Integer.valueOf(map.get("height"));
             c.xoffset  = Integer.valueOf(map.get("xoffset"));
             c.yoffset  = Integer.valueOf(map.get("yoffset"));
             c.xadvance = Integer.valueOf(map.get("xadvance"));
-            c.u = x / BM_WIDTH;
-            c.v = y / BM_WIDTH;
-            c.u2 = (x + c.width - 1) / BM_WIDTH;
-            c.v2 = (y + c.height - 1) / BM_WIDTH;
             return c;
         };
 
-        Page page = new Page();
+        var chars    = new HashMap<Integer,Char>();
+        var kernings = new HashMap<Long,Integer>(); /// key = (from<<32 | to)
+        var files    = new HashMap<Integer,String>();
         try(var br = new BufferedReader(new FileReader(directory+name+".fnt"))) {
             String line;
             while((line=br.readLine())!=null) {
@@ -159,12 +268,16 @@ final public class Font {
 
                 if(firstToken.equals("char")) {
                     var fc = readChar.call(line.substring(4));
-                    page.chars.put(fc.id, fc);
+                    chars.put(fc.id, fc);
                 } else if(firstToken.equals("kerning")) {
                     long first  = getInt.call(line, "first=");
                     long second = getInt.call(line, "second=");
                     int amount  = getInt.call(line, "amount=");
-                    page.kernings.put((first << 32) | second, amount);
+                    kernings.put((first << 32) | second, amount);
+                } else if(firstToken.equals("page")) {
+                    int id = getInt.call(line, "id=");
+                    int p  = line.indexOf("file=\"") + 6;
+                    files.put(id, line.substring(p, line.indexOf('"', p)));
                 } else if(firstToken.equals("info")) {
                     font.size = getInt.call(line, "size=");
                 } else if(firstToken.equals("common")) {
@@ -176,7 +289,21 @@ final public class Font {
         }catch(Exception e) {
             throw new RuntimeException(e);
         }
+        if(files.isEmpty()) files.put(0, name+".png");
+
+        var sorted = chars.values().toArray(new Char[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(c -> c.id));
+
+        var keys = new long[kernings.size()];
+        int n = 0;
+        for(var k : kernings.keySet()) keys[n++] = k;
+        Arrays.sort(keys);
+        var amounts = new int[keys.length];
+        for(int i=0; i<keys.length; i++) amounts[i] = kernings.get(keys[i]);
 
-        return page;
+        font.page = new Page();
+        font.page.setChars(sorted);
+        font.page.setKernings(keys, amounts);
+        return files;
     }
 }
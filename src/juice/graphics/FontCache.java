@@ -0,0 +1,171 @@
+package juice.graphics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A binary copy of a BMFont text file, stored as name.fntc next to the
+ * .fnt file. It is memory mapped and bulk copied into the primitive
+ * tables of Font.Page, so loading does no text parsing at all.
+ *
+ * The cache is regenerated whenever it is missing, unreadable or older
+ * than the .fnt file. If only the cache exists it is used as is.
+ *
+ * Layout, little endian:
+ *   int magic, version, size, width, height, lineHeight
+ *   int numChars, numKernings, numPages, reserved
+ *   long[numKernings] kerning keys (from<<32 | to), sorted
+ *   int[numKernings]  kerning amounts
+ *   int[numChars*9]   id x y page width height xoffset yoffset xadvance, sorted by id
+ *   numPages * { int id, int length, byte[length] UTF-8 filename }
+ */
+final class FontCache {
+    static final String EXTENSION = ".fntc";
+    private static final int MAGIC       = 0x544E464A;  // "JFNT"
+    private static final int VERSION     = 1;
+    private static final int HEADER_INTS = 10;
+    private static final int CHAR_INTS   = 9;
+
+    /**
+     * Read name from the cache, regenerating it from the .fnt first if needed.
+     * @return The page image filenames by page id.
+     */
+    static Map<Integer,String> load(Font font, String directory, String name) {
+        var fnt   = Paths.get(directory + name + ".fnt");
+        var cache = Paths.get(directory + name + EXTENSION);
+
+        if(isFresh(fnt, cache)) {
+            try{
+                return read(cache, font);
+            }catch(Exception e) {
+                System.err.println("Font cache '"+cache+"' is unreadable, regenerating: "+e);
+            }
+        }
+        var files = Font.readText(font, directory, name);
+        try{
+            write(cache, font, files);
+        }catch(IOException e) {
+            System.err.println("Unable to write font cache '"+cache+"': "+e);
+        }
+        return files;
+    }
+    static boolean isFresh(Path fnt, Path cache) {
+        try{
+            if(!Files.exists(cache)) return false;
+            if(!Files.exists(fnt)) return true;
+            return Files.getLastModifiedTime(cache).compareTo(Files.getLastModifiedTime(fnt)) >= 0;
+        }catch(IOException e) {
+            return false;
+        }
+    }
+    static Map<Integer,String> read(Path cache, Font font) throws IOException {
+        ByteBuffer buf;
+        try(var ch = FileChannel.open(cache, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        var header = new int[HEADER_INTS];
+        buf.asIntBuffer().get(header);
+        if(header[0] != MAGIC || header[1] != VERSION) {
+            throw new IOException("not a version "+VERSION+" font cache");
+        }
+        font.size       = header[2];
+        font.width      = header[3];
+        font.height     = header[4];
+        font.lineHeight = header[5];
+        int numChars    = header[6];
+        int numKernings = header[7];
+        int numPages    = header[8];
+        buf.position(HEADER_INTS * 4);
+
+        var keys    = new long[numKernings];
+        var amounts = new int[numKernings];
+        buf.asLongBuffer().get(keys);
+        buf.position(buf.position() + numKernings * 8);
+        buf.asIntBuffer().get(amounts);
+        buf.position(buf.position() + numKernings * 4);
+
+        var raw = new int[numChars * CHAR_INTS];
+        buf.asIntBuffer().get(raw);
+        buf.position(buf.position() + raw.length * 4);
+
+        var chars = new Font.Char[numChars];
+        for(int i=0, p=0; i<numChars; i++) {
+            var c      = new Font.Char();
+            c.id       = raw[p++];
+            c.x        = raw[p++];
+            c.y        = raw[p++];
+            c.page     = raw[p++];
+            c.width    = raw[p++];
+            c.height   = raw[p++];
+            c.xoffset  = raw[p++];
+            c.yoffset  = raw[p++];
+            c.xadvance = raw[p++];
+            chars[i]   = c;
+        }
+
+        var files = new HashMap<Integer,String>();
+        for(int i=0; i<numPages; i++) {
+            int id    = buf.getInt();
+            var bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            files.put(id, new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        font.page = new Font.Page();
+        font.page.setChars(chars);
+        font.page.setKernings(keys, amounts);
+        return files;
+    }
+    /** Write to a temporary file first so that readers never see a partial cache. */
+    static void write(Path cache, Font font, Map<Integer,String> files) throws IOException {
+        var page = font.page;
+        int n    = page.getNumChars();
+        int k    = page.getNumKernings();
+
+        var names = new HashMap<Integer,byte[]>();
+        int pageBytes = 0;
+        for(var e : files.entrySet()) {
+            var bytes = e.getValue().getBytes(StandardCharsets.UTF_8);
+            names.put(e.getKey(), bytes);
+            pageBytes += 8 + bytes.length;
+        }
+
+        var buf = ByteBuffer.allocate(HEADER_INTS*4 + k*12 + n*CHAR_INTS*4 + pageBytes)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION)
+           .putInt(font.size).putInt(font.width).putInt(font.height).putInt(font.lineHeight)
+           .putInt(n).putInt(k).putInt(files.size()).putInt(0);
+        for(var key : page.kernKeys) buf.putLong(key);
+        for(var amount : page.kernAmounts) buf.putInt(amount);
+        for(var c : page.chars) {
+            buf.putInt(c.id).putInt(c.x).putInt(c.y).putInt(c.page)
+               .putInt(c.width).putInt(c.height)
+               .putInt(c.xoffset).putInt(c.yoffset).putInt(c.xadvance);
+        }
+        for(var e : names.entrySet()) {
+            buf.putInt(e.getKey()).putInt(e.getValue().length).put(e.getValue());
+        }
+        buf.flip();
+
+        var dir = cache.toAbsolutePath().getParent();
+        var tmp = Files.createTempFile(dir, cache.getFileName().toString(), ".tmp");
+        try{
+            try(var ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while(buf.hasRemaining()) ch.write(buf);
+            }
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING);
+        }finally{
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -4,24 +4,63 @@ import org.joml.*;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.lwjgl.opengl.GL20.*;
 
 public class GLShaderProgram {
+    private static Map<String,GLShaderProgram> shared = new HashMap<>();
     private int id;
+    private String key;
+    private int refCount;
     private List<GLShader> shaders = new ArrayList<>();
-    private FloatBuffer buffer2  = BufferUtils.createFloatBuffer(2);
-    private FloatBuffer buffer3  = BufferUtils.createFloatBuffer(3);
+    private Map<String,Uniform> uniforms = new HashMap<>();
+    private float[] scratch = new float[16];
+    private long redundantWrites;
     private FloatBuffer buffer9  = BufferUtils.createFloatBuffer(9);
     private FloatBuffer buffer16 = BufferUtils.createFloatBuffer(16);
 
+    /**
+     * An active uniform. The location is resolved once after linking and
+     * the last written value is kept so that unchanged writes can be skipped.
+     */
+    private static final class Uniform {
+        final int location;
+        final float[] shadow = new float[16];
+        int intValue;
+        boolean written;
+
+        Uniform(int location) { this.location = location; }
+
+        boolean isUnchanged(int value) {
+            if(written && intValue==value) return true;
+            intValue = value;
+            written  = true;
+            return false;
+        }
+        boolean isUnchanged(float[] values, int count) {
+            if(written) {
+                boolean same = true;
+                for(int i=0; i<count && same; i++) {
+                    same = shadow[i]==values[i];
+                }
+                if(same) return true;
+            }
+            System.arraycopy(values, 0, shadow, 0, count);
+            written = true;
+            return false;
+        }
+    }
+
     private class GLShader {
         int type;
         int id;
@@ -55,18 +94,69 @@ public class GLShaderProgram {
         }
     }
     //====================================================================================
+    /**
+     * Return a linked program shared by all callers using the same sources.
+     * Each call must be balanced by a call to release(). Uniforms are shared
+     * state so callers should set any per-instance uniforms before drawing.
+     */
+    public static GLShaderProgram get(String vertexSrc, String fragmentSrc) {
+        var key  = vertexSrc + "\0" + fragmentSrc;
+        var prog = shared.get(key);
+        if(prog==null) {
+            prog = new GLShaderProgram()
+                .shaderSource(GL_VERTEX_SHADER, vertexSrc)
+                .shaderSource(GL_FRAGMENT_SHADER, fragmentSrc)
+                .link();
+            prog.key = key;
+            shared.put(key, prog);
+        }
+        prog.refCount++;
+        return prog;
+    }
+    /** Destroy all shared programs regardless of reference count. */
+    public static void destroyShared() {
+        for(var p : shared.values()) {
+            p.refCount = 0;
+            p.key      = null;
+            p.destroy();
+        }
+        shared.clear();
+    }
+    public static int getNumShared() {
+        return shared.size();
+    }
+    /** The number of uniform writes skipped because the value had not changed. */
+    public long getRedundantWritesAvoided() {
+        return redundantWrites;
+    }
+    //====================================================================================
     public GLShaderProgram() {
         this.id = glCreateProgram();
     }
+    /** Release a program returned by get(). Destroys it when no longer used. */
+    public void release() {
+        if(key==null) {
+            destroy();
+            return;
+        }
+        if(--refCount > 0) return;
+
+        shared.remove(key);
+        key = null;
+        destroy();
+    }
     public GLShaderProgram shaderSource(int type, String src) {
         shaders.add(new GLShader(type, src));
         return this;
     }
+    /** Safe to call more than once, eg. release() after destroyShared(). */
     public void destroy() {
+        if(id==0) return;
         shaders.forEach(GLShader::destroy);
         shaders.clear();
         glUseProgram(0);
         glDeleteProgram(id);
+        id = 0;
     }
     public GLShaderProgram link() {
         shaders.forEach(s -> glAttachShader(id, s.id));
@@ -81,6 +171,7 @@ public class GLShaderProgram {
         }
         shaders.forEach(GLShader::destroy);
         shaders.clear();
+        fetchUniforms();
         return this;
     }
     public GLShaderProgram use() {
@@ -88,40 +179,95 @@ public class GLShaderProgram {
         return this;
     }
     public GLShaderProgram setUniform(String name, int value) {
-        glUniform1i(getLocation(name), value);
+        var u = getUniform(name);
+        if(u==null) return this;
+        if(u.isUnchanged(value)) {
+            redundantWrites++;
+        } else {
+            glUniform1i(u.location, value);
+        }
         return this;
     }
     public GLShaderProgram setUniform(String name, float value) {
-        glUniform1f(getLocation(name), value);
+        scratch[0] = value;
+        var u = write(name, 1);
+        if(u!=null) glUniform1f(u.location, value);
         return this;
     }
     public GLShaderProgram setUniform(String name, Vector2f value) {
-        glUniform2fv(getLocation(name), value.get(buffer2));
+        scratch[0] = value.x; scratch[1] = value.y;
+        var u = write(name, 2);
+        if(u!=null) glUniform2f(u.location, value.x, value.y);
         return this;
     }
     public GLShaderProgram setUniform(String name, Vector3f value) {
-        glUniform3fv(getLocation(name), value.get(buffer3));
+        scratch[0] = value.x; scratch[1] = value.y; scratch[2] = value.z;
+        var u = write(name, 3);
+        if(u!=null) glUniform3f(u.location, value.x, value.y, value.z);
         return this;
     }
     public GLShaderProgram setUniform(String name, Vector4f value) {
-        var buf = BufferUtils.createFloatBuffer(4);
-        glUniform4fv(getLocation(name), value.get(buf));
+        scratch[0] = value.x; scratch[1] = value.y; scratch[2] = value.z; scratch[3] = value.w;
+        var u = write(name, 4);
+        if(u!=null) glUniform4f(u.location, value.x, value.y, value.z, value.w);
         return this;
     }
     public GLShaderProgram setUniform(String name, Matrix3f matrix) {
-        buffer9.position(0);
-        glUniformMatrix3fv(getLocation(name), false, matrix.get(buffer9));
+        matrix.get(scratch);
+        var u = write(name, 9);
+        if(u!=null) {
+            buffer9.position(0);
+            glUniformMatrix3fv(u.location, false, matrix.get(buffer9));
+        }
         return this;
     }
     public GLShaderProgram setUniform(String name, Matrix4f matrix) {
-        buffer16.position(0);
-        glUniformMatrix4fv(getLocation(name), false, matrix.get(buffer16));
+        matrix.get(scratch);
+        var u = write(name, 16);
+        if(u!=null) {
+            buffer16.position(0);
+            glUniformMatrix4fv(u.location, false, matrix.get(buffer16));
+        }
         return this;
     }
     //====================================================================================
-    private int getLocation(String name) {
-        int loc = glGetUniformLocation(id, name);
-        if(loc < 0) System.out.println("WARN: Shader program uniform '" + name + "' not found");
-        return loc;
+    /** Resolve the location of every active uniform. */
+    private void fetchUniforms() {
+        uniforms.clear();
+        int count = glGetProgrami(id, GL_ACTIVE_UNIFORMS);
+        try(var stack = MemoryStack.stackPush()) {
+            IntBuffer size = stack.mallocInt(1);
+            IntBuffer type = stack.mallocInt(1);
+            for(int i=0; i<count; i++) {
+                var name = glGetActiveUniform(id, i, size, type);
+                // Arrays are reported as "name[0]"
+                if(name.endsWith("[0]")) name = name.substring(0, name.length()-3);
+
+                uniforms.put(name, new Uniform(glGetUniformLocation(id, name)));
+            }
+        }
+    }
+    private Uniform getUniform(String name) {
+        var u = uniforms.get(name);
+        if(u==null) {
+            System.out.println("WARN: Shader program uniform '" + name + "' not found");
+            // Only warn once
+            uniforms.put(name, new Uniform(-1));
+            return null;
+        }
+        return u.location < 0 ? null : u;
+    }
+    /**
+     * Compare the first count values of scratch against the uniform's shadow copy.
+     * Returns the uniform if it needs to be written, otherwise null.
+     */
+    private Uniform write(String name, int count) {
+        var u = getUniform(name);
+        if(u==null) return null;
+        if(u.isUnchanged(scratch, count)) {
+            redundantWrites++;
+            return null;
+        }
+        return u;
     }
 }
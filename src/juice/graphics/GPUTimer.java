@@ -0,0 +1,77 @@
+package juice.graphics;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjectui64;
+
+/**
+ * Measures GPU time with GL_TIME_ELAPSED queries.
+ *
+ * The GPU runs a frame or two behind the CPU so reading a query straight
+ * after ending it would stall. Instead a ring of queries is used and each
+ * is only read once GL_QUERY_RESULT_AVAILABLE says it has finished, which
+ * is normally the next frame.
+ *
+ * Only one GL_TIME_ELAPSED query can be active at a time so timers can
+ * not be nested.
+ */
+public final class GPUTimer {
+    private static final int NUM_QUERIES = 3;
+
+    private int[] queries = new int[NUM_QUERIES];
+    private boolean[] pending = new boolean[NUM_QUERIES];
+    private int index;
+    private long lastNsecs;
+    private long totalNsecs;
+    private long numResults;
+
+    public GPUTimer() {
+        glGenQueries(queries);
+    }
+    public void destroy() {
+        glDeleteQueries(queries);
+    }
+    /** The most recent result in nanoseconds. */
+    public long getLastNsecs() {
+        return lastNsecs;
+    }
+    public long getTotalNsecs() {
+        return totalNsecs;
+    }
+    public long getNumResults() {
+        return numResults;
+    }
+    public void reset() {
+        totalNsecs = 0;
+        numResults = 0;
+    }
+    public GPUTimer begin() {
+        collect();
+
+        // If every query is still in flight drop the oldest result rather than wait
+        index = (index+1) % NUM_QUERIES;
+        pending[index] = false;
+
+        glBeginQuery(GL_TIME_ELAPSED, queries[index]);
+        return this;
+    }
+    public GPUTimer end() {
+        glEndQuery(GL_TIME_ELAPSED);
+        pending[index] = true;
+        return this;
+    }
+    //====================================================================================
+    /** Read the finished queries, oldest first, without blocking. Called by begin(). */
+    public void collect() {
+        for(int i=1; i<=NUM_QUERIES; i++) {
+            int q = (index+i) % NUM_QUERIES;
+            if(!pending[q]) continue;
+            if(glGetQueryObjecti(queries[q], GL_QUERY_RESULT_AVAILABLE) == GL_FALSE) break;
+
+            lastNsecs   = glGetQueryObjectui64(queries[q], GL_QUERY_RESULT);
+            totalNsecs += lastNsecs;
+            numResults++;
+            pending[q] = false;
+        }
+    }
+}
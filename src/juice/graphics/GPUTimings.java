@@ -0,0 +1,143 @@
+package juice.graphics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GPU time per renderer.
+ *
+ * Each renderer owns a Timer and wraps its draws in begin() and end().
+ * While timings are disabled these do nothing. Once enabled each Timer
+ * creates a GPUTimer, which uses a ring of GL_TIME_ELAPSED queries that
+ * are read back a frame or two later without stalling.
+ *
+ * GL_TIME_ELAPSED queries can not be nested so a begin() while another
+ * Timer is running is ignored.
+ *
+ * Results are reported per renderer instance (class name and id) and
+ * totalled per class. Only use from the render thread.
+ */
+public final class GPUTimings {
+    public static final class Timer {
+        private final String renderer;
+        private final String label;
+        private final int id;
+        private GPUTimer timer;
+        private boolean running;
+
+        private Timer(Object owner, String label) {
+            this.renderer = owner.getClass().getSimpleName();
+            this.label    = label;
+            this.id       = ++nextId;
+        }
+        public void begin() {
+            if(!enabled || active!=null) return;
+            if(timer==null) {
+                timer = new GPUTimer();
+                timers.add(this);
+            }
+            timer.begin();
+            running = true;
+            active  = this;
+        }
+        public void end() {
+            if(!running) return;
+            timer.end();
+            running = false;
+            active  = null;
+        }
+        public void destroy() {
+            if(running) end();
+            if(timer!=null) {
+                timer.destroy();
+                timers.remove(this);
+            }
+            timer = null;
+        }
+    }
+    public static final class Entry {
+        /** Renderer class name, plus the label if the renderer has more than one timer */
+        public final String renderer;
+        public final int id;
+        public final long lastNsecs, totalNsecs, samples;
+
+        private Entry(Timer t) {
+            this.renderer   = t.label==null ? t.renderer : t.renderer+" "+t.label;
+            this.id         = t.id;
+            this.lastNsecs  = t.timer.getLastNsecs();
+            this.totalNsecs = t.timer.getTotalNsecs();
+            this.samples    = t.timer.getNumResults();
+        }
+        public double getMeanMs() {
+            return samples==0 ? 0 : totalNsecs * 1e-6 / samples;
+        }
+        @Override public String toString() {
+            return String.format("%s#%d mean:%.3fms last:%.3fms samples:%d", renderer, id, getMeanMs(), lastNsecs*1e-6, samples);
+        }
+    }
+    //====================================================================================
+    public static Timer timer(Object owner) {
+        return new Timer(owner, null);
+    }
+    /** A timer for a separate pass of a renderer, eg. "shadow". */
+    public static Timer timer(Object owner, String label) {
+        return new Timer(owner, label);
+    }
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    public static void setEnabled(boolean flag) {
+        enabled = flag;
+    }
+    /**
+     * Read back any finished queries. Call once per frame so renderers that
+     * are not drawn every frame still report their last result.
+     */
+    public static void collect() {
+        for(var t : timers) {
+            t.timer.collect();
+        }
+    }
+    /** Total GPU time of every renderer so far. */
+    public static long getTotalNsecs() {
+        long total = 0;
+        for(var t : timers) {
+            total += t.timer.getTotalNsecs();
+        }
+        return total;
+    }
+    /** Every timed renderer instance, most total GPU time first. */
+    public static List<Entry> getEntries() {
+        var list = new ArrayList<Entry>();
+        for(var t : timers) {
+            list.add(new Entry(t));
+        }
+        list.sort(Comparator.comparingLong((Entry e) -> e.totalNsecs).reversed());
+        return list;
+    }
+    /** Total GPU time in nanoseconds by renderer, most first. */
+    public static Map<String, Long> getTotalsByRenderer() {
+        var totals = new LinkedHashMap<String, Long>();
+        for(var e : getEntries()) {
+            totals.merge(e.renderer, e.totalNsecs, Long::sum);
+        }
+        var sorted = new LinkedHashMap<String, Long>();
+        totals.entrySet().stream()
+              .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+              .forEach(it -> sorted.put(it.getKey(), it.getValue()));
+        return sorted;
+    }
+    public static void reset() {
+        for(var t : timers) {
+            t.timer.reset();
+        }
+    }
+    //====================================================================================
+    private static boolean enabled;
+    private static int nextId;
+    private static Timer active;
+    private static List<Timer> timers = new ArrayList<>();
+}
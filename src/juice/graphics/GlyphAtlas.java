@@ -0,0 +1,134 @@
+package juice.graphics;
+
+import juice.types.Int2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.BufferUtils.createByteBuffer;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL12.glTexSubImage3D;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL30.GL_MAX_ARRAY_TEXTURE_LAYERS;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
+
+/**
+ * Packs the pages of every loaded font into the layers of one shared
+ * GL_TEXTURE_2D_ARRAY so that text in any mix of fonts can be drawn
+ * with the same texture bound.
+ *
+ * A new layer is added when a page does not fit in any existing layer.
+ * The pixels of each page are kept so that the array can be recreated
+ * with more layers.
+ */
+final public class GlyphAtlas {
+    public static final int LAYER_SIZE = 1024;
+    private static final int PADDING   = 2;
+
+    public static final class Region {
+        public int layer, x, y, width, height;
+    }
+    private static final class Entry {
+        Region region;
+        ByteBuffer pixels;
+    }
+    //====================================================================================
+    public static int getId() {
+        return id;
+    }
+    public static int getNumLayers() {
+        return numLayers;
+    }
+    public static void bind(int unit) {
+        glActiveTexture(GL_TEXTURE0 + unit);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+    }
+    public static void destroy() {
+        if(id!=0) glDeleteTextures(id);
+        id        = 0;
+        numLayers = 0;
+        packers.clear();
+        entries.clear();
+    }
+    /**
+     * Pack a page of RGBA8 pixels into the atlas.
+     * @return Where the page was placed.
+     */
+    public static Region add(int width, int height, ByteBuffer rgba) {
+        if(width > LAYER_SIZE || height > LAYER_SIZE) {
+            throw new RuntimeException("Font page "+width+"x"+height+" does not fit in a "+LAYER_SIZE+" glyph atlas layer");
+        }
+
+        int layer = 0;
+        Int2 pos  = null;
+        for(; layer<packers.size() && pos==null; layer++) {
+            pos = packers.get(layer).pack(width+PADDING, height+PADDING);
+        }
+        if(pos == null) {
+            // The padding after the last page in a row or column can hang off the edge
+            var packer = new RectPacker(LAYER_SIZE+PADDING, LAYER_SIZE+PADDING);
+            packers.add(packer);
+            pos   = packer.pack(width+PADDING, height+PADDING);
+            layer = packers.size();
+        }
+
+        var e           = new Entry();
+        e.region        = new Region();
+        e.region.layer  = layer-1;
+        e.region.x      = pos.getX();
+        e.region.y      = pos.getY();
+        e.region.width  = width;
+        e.region.height = height;
+        e.pixels        = rgba;
+        entries.add(e);
+
+        if(packers.size() > numLayers) {
+            allocate(packers.size());
+        } else {
+            glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+            upload(e);
+        }
+        return e.region;
+    }
+    //====================================================================================
+    private static int id;
+    private static int numLayers;
+    private static List<RectPacker> packers = new ArrayList<>();
+    private static List<Entry> entries      = new ArrayList<>();
+
+    private static void allocate(int layers) {
+        int maxLayers = glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS);
+        if(layers > maxLayers) {
+            throw new RuntimeException("Glyph atlas needs "+layers+" layers but only "+maxLayers+" are supported");
+        }
+        if(id!=0) glDeleteTextures(id);
+
+        id        = glGenTextures();
+        numLayers = layers;
+
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+
+        // Clear every layer so the padding between pages is transparent
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, LAYER_SIZE, LAYER_SIZE, layers, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer)null);
+        var zero = createByteBuffer(LAYER_SIZE * LAYER_SIZE * 4);
+        for(int i=0; i<layers; i++) {
+            glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, i, LAYER_SIZE, LAYER_SIZE, 1, GL_RGBA, GL_UNSIGNED_BYTE, zero);
+        }
+
+        for(var e : entries) {
+            upload(e);
+        }
+    }
+    private static void upload(Entry e) {
+        var r = e.region;
+        glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, r.x, r.y, r.layer, r.width, r.height, 1, GL_RGBA, GL_UNSIGNED_BYTE, e.pixels);
+    }
+}
@@ -8,25 +8,40 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import static juice.Util.putBytes;
 import static org.lwjgl.BufferUtils.createByteBuffer;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
 import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
-import static org.lwjgl.opengl.GL20.GL_FRAGMENT_SHADER;
-import static org.lwjgl.opengl.GL20.GL_VERTEX_SHADER;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
 
 /**
- * Draw textured quads. All quads use the same texture.
+ * Draw textured quads. All quads use the same texture. To draw many
+ * different images in one call pack them into a TextureAtlas page and
+ * add quads using its regions.
+ *
+ * In instanced mode a single static unit quad is drawn once per quad
+ * and each quad uploads one compact instance record instead of 6 vertices.
  */
 final public class ImageRenderer {
+    private static final int VERTEX_SIZE   = 2 * 4 +
+                                             2 * 4 +
+                                             4 * 4;
+    private static final int INSTANCE_SIZE = 4 * 4 +   // rect
+                                             4 * 4 +   // uvs
+                                             4;        // rgba8
+
     private VAO vao;
-    private VBO vbo;
+    private VBO vbo, quadVbo;
     private ByteBuffer buffer;
     private GLShaderProgram prog;
     private Texture texture;
+    private Matrix4f viewProj = new Matrix4f();
     private List<Quad> quads = new ArrayList<>();
-    private boolean quadsChanged = true;
+    private DirtyRange dirty = new DirtyRange();
+    private boolean instanced = false;
+    private GPUTimings.Timer gpuTimer = GPUTimings.timer(this);
 
     private class Quad {
         Rect<Integer> rect;
@@ -41,20 +56,36 @@ final public class ImageRenderer {
     public ImageRenderer(Texture t) {
         this.texture = t;
         this.vao = new VAO();
-        this.prog = new GLShaderProgram()
-            .shaderSource(GL_VERTEX_SHADER, VS)
-            .shaderSource(GL_FRAGMENT_SHADER, FS)
-            .link();
+        this.prog = GLShaderProgram.get(VS, FS);
 
         prog.use().setUniform("SAMPLER0", 0);
     }
     public void destroy() {
         if(vbo!=null) vbo.destroy();
+        if(quadVbo!=null) quadVbo.destroy();
         vao.destroy();
-        prog.destroy();
+        gpuTimer.destroy();
+        prog.release();
     }
     public ImageRenderer setVP(Matrix4f viewProj) {
-        prog.use().setUniform("VP", viewProj);
+        this.viewProj = viewProj;
+        return this;
+    }
+    /** Draw using one instance record per quad. */
+    public ImageRenderer setInstanced(boolean flag) {
+        if(flag==instanced) return this;
+
+        instanced = flag;
+        if(vbo!=null) vbo.destroy();
+        if(quadVbo!=null) quadVbo.destroy();
+        vbo     = null;
+        quadVbo = null;
+        vao.destroy();
+        vao = new VAO();
+        prog.release();
+        prog = instanced ? GLShaderProgram.get(VS_Instanced, FS) : GLShaderProgram.get(VS, FS);
+        prog.use().setUniform("SAMPLER0", 0);
+        dirty.markAll(quads.size());
         return this;
     }
     public ImageRenderer addQuad(Rect<Integer> rect, Rect<Float> uvs, RGBA colour) {
@@ -63,106 +94,176 @@ final public class ImageRenderer {
         q.uvs = uvs;
         q.colour = colour;
         quads.add(q);
-        quadsChanged = true;
+        dirty.mark(quads.size()-1);
         return this;
     }
+    /** Add a quad showing a region of this renderer's texture. */
+    public ImageRenderer addQuad(Rect<Integer> rect, TextureRegion region, RGBA colour) {
+        checkRegion(region);
+        return addQuad(rect, region.uvs(), colour);
+    }
+    public ImageRenderer setQuad(int index, Rect<Integer> rect, TextureRegion region, RGBA colour) {
+        checkRegion(region);
+        return setQuad(index, rect, region.uvs(), colour);
+    }
     public ImageRenderer setQuad(int index, Rect<Integer> rect, Rect<Float> uvs, RGBA colour) {
         Quad q = new Quad();
         q.rect = rect;
         q.uvs = uvs;
         q.colour = colour;
         quads.set(index, q);
-        quadsChanged = true;
+        dirty.mark(index);
         return this;
     }
     public ImageRenderer removeQuad(int index) {
         quads.remove(index);
-        quadsChanged = true;
+        // Subsequent quads move down one slot
+        dirty.mark(index, quads.size());
         return this;
     }
     public ImageRenderer clearQuads() {
         quads.clear();
-        quadsChanged = true;
+        dirty.clear();
         return this;
     }
     public void render() {
         if(quads.size()==0) return;
+        gpuTimer.begin();
         vao.bind();
-        prog.use();
+        prog.use().setUniform("VP", viewProj);
         populateVbo();
 
         glActiveTexture(GL_TEXTURE0 + 0);
         glBindTexture(GL_TEXTURE_2D, texture.id);
-        glDrawArrays(GL_TRIANGLES, 0, quads.size() * 6);   // 6 vertices
+        if(instanced) {
+            glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, quads.size());
+        } else {
+            glDrawArrays(GL_TRIANGLES, 0, quads.size() * 6);   // 6 vertices
+        }
+        DrawStats.drawCall();
+        gpuTimer.end();
+    }
+    /** Submit to the frame batch or render immediately if there is no batch. */
+    public void render(BatchRenderer batch) {
+        if(batch==null) {
+            render();
+            return;
+        }
+        for(var q : quads) {
+            batch.texturedQuad(texture, q.rect.x, q.rect.y, q.rect.w, q.rect.h,
+                               q.uvs.x, q.uvs.y, q.uvs.x+q.uvs.w, q.uvs.y+q.uvs.h, q.colour);
+        }
     }
     //====================================================================================
+    private void checkRegion(TextureRegion r) {
+        if(r.texture != texture) throw new RuntimeException(r+" is not part of texture "+texture.name);
+    }
     private void populateVbo() {
-        if(!quadsChanged) return;
-
-        final int VERTEX_SIZE = 2 * 4 +
-                                2 * 4 +
-                                4 * 4;
+        if(dirty.isEmpty()) return;
 
-        int bytesRequired = quads.size() * VERTEX_SIZE * 6;
+        final int SLOT_SIZE = instanced ? INSTANCE_SIZE : VERTEX_SIZE * 6;
+        int count           = quads.size();
+        int bytesRequired   = count * SLOT_SIZE;
 
-        // alloc and bind the VBO
-        if(vbo == null) {
-            vbo = VBO.makeArray(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
-        } else if(bytesRequired > (int)vbo.sizeBytes) {
-            vbo.bind();
-            vbo.realloc(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
+        // alloc and bind the VBO. Grow with some headroom so that
+        // appending does not force the whole buffer to be rewritten
+        if(vbo == null || bytesRequired > (int)vbo.sizeBytes) {
+            int capacity = Math.max(bytesRequired, vbo==null ? 0 : (int)vbo.sizeBytes * 2);
+            if(vbo == null) {
+                vbo = VBO.makeArray(capacity, GL_DYNAMIC_DRAW);
+            } else {
+                vbo.bind();
+                vbo.realloc(capacity, GL_DYNAMIC_DRAW);
+            }
+            buffer = createByteBuffer(capacity);
+            enableAttribs();
+            dirty.markAll(count);
         } else {
             vbo.bind();
         }
 
-        buffer.position(0);
-        quads.forEach(q -> {
-            // 0--2
-            // | /|
-            // |/ |
-            // 1--3
-            //
-            buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y);                   // 0
-            buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y);
-            buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
-            buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
-
-            buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y+q.rect.h);          // 1
-            buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y+q.uvs.h);
-            buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
-            buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
-
-            buffer.putFloat(q.rect.x+q.rect.w); buffer.putFloat(q.rect.y);          // 2
-            buffer.putFloat(q.uvs.x+q.uvs.w); buffer.putFloat(q.uvs.y);
-            buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
-            buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
-
-
-
-            buffer.putFloat(q.rect.x+q.rect.w); buffer.putFloat(q.rect.y);          // 2
-            buffer.putFloat(q.uvs.x+q.uvs.w); buffer.putFloat(q.uvs.y);
-            buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
-            buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
-
-            buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y+q.rect.h);          // 1
-            buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y+q.uvs.h);
-            buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
-            buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
-
-            buffer.putFloat(q.rect.x+q.rect.w); buffer.putFloat(q.rect.y+q.rect.h); // 3
-            buffer.putFloat(q.uvs.x+q.uvs.w); buffer.putFloat(q.uvs.y+q.uvs.h);
-            buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
-            buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
-        });
-        buffer.position(0);
-        vbo.addData(buffer);
-
-        vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
-        vao.enableAttrib(1, 2, GL_FLOAT, false, VERTEX_SIZE, 2*4);
-        vao.enableAttrib(2, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4);
-        quadsChanged = false;
+        // Only rewrite and upload the dirty slots
+        for(int r=0; r<dirty.size(); r++) {
+            int from = dirty.from(r);
+            int to   = Math.min(dirty.to(r), count);
+            if(from >= to) continue;
+
+            buffer.clear().position(from * SLOT_SIZE);
+            for(int i=from; i<to; i++) {
+                if(instanced) {
+                    putInstance(quads.get(i));
+                } else {
+                    putVertices(quads.get(i));
+                }
+            }
+            buffer.flip().position(from * SLOT_SIZE);
+            vbo.addData(buffer, from * SLOT_SIZE);
+        }
+        dirty.clear();
+    }
+    private void enableAttribs() {
+        if(!instanced) {
+            vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
+            vao.enableAttrib(1, 2, GL_FLOAT, false, VERTEX_SIZE, 2*4);
+            vao.enableAttrib(2, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4);
+            return;
+        }
+        if(quadVbo == null) quadVbo = VBO.makeUnitQuad();
+        quadVbo.bind();
+        vao.enableAttrib(0, 2, GL_FLOAT, false, 2*4, 0);
+
+        vbo.bind();
+        vao.enableAttrib(1, 4, GL_FLOAT, false, INSTANCE_SIZE, 0);
+        vao.enableAttrib(2, 4, GL_FLOAT, false, INSTANCE_SIZE, 4*4);
+        vao.enableAttrib(3, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, 4*4 + 4*4);
+        for(int i=1; i<=3; i++) {
+            vao.setDivisor(i, 1);
+        }
+    }
+    private void putVertices(Quad q) {
+        // 0--2
+        // | /|
+        // |/ |
+        // 1--3
+        //
+        buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y);                   // 0
+        buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y);
+        buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
+        buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
+
+        buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y+q.rect.h);          // 1
+        buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y+q.uvs.h);
+        buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
+        buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
+
+        buffer.putFloat(q.rect.x+q.rect.w); buffer.putFloat(q.rect.y);          // 2
+        buffer.putFloat(q.uvs.x+q.uvs.w); buffer.putFloat(q.uvs.y);
+        buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
+        buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
+
+
+
+        buffer.putFloat(q.rect.x+q.rect.w); buffer.putFloat(q.rect.y);          // 2
+        buffer.putFloat(q.uvs.x+q.uvs.w); buffer.putFloat(q.uvs.y);
+        buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
+        buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
+
+        buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y+q.rect.h);          // 1
+        buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y+q.uvs.h);
+        buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
+        buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
+
+        buffer.putFloat(q.rect.x+q.rect.w); buffer.putFloat(q.rect.y+q.rect.h); // 3
+        buffer.putFloat(q.uvs.x+q.uvs.w); buffer.putFloat(q.uvs.y+q.uvs.h);
+        buffer.putFloat(q.colour.r); buffer.putFloat(q.colour.g);
+        buffer.putFloat(q.colour.b); buffer.putFloat(q.colour.a);
+    }
+    private void putInstance(Quad q) {
+        buffer.putFloat(q.rect.x); buffer.putFloat(q.rect.y);
+        buffer.putFloat(q.rect.w); buffer.putFloat(q.rect.h);
+        buffer.putFloat(q.uvs.x); buffer.putFloat(q.uvs.y);
+        buffer.putFloat(q.uvs.w); buffer.putFloat(q.uvs.h);
+        putBytes(buffer, q.colour);
     }
     //====================================================================================
     private static final String VS =
@@ -185,6 +286,28 @@ final public class ImageRenderer {
         "        vs_out.colour = colour;" +
         "    }" +
         "";
+    private static final String VS_Instanced =
+        "#version 330 core\n" +
+        "" +
+        "    layout(location = 0) in vec2 corner;" +
+        "    layout(location = 1) in vec4 rect;" +
+        "    layout(location = 2) in vec4 uvRect;" +
+        "    layout(location = 3) in vec4 colour;" +
+        "" +
+        "    uniform mat4 VP;" +
+        "" +
+        "    out VS_OUT {" +
+        "        vec2 uvs;" +
+        "        vec4 colour;" +
+        "    } vs_out;" +
+        "" +
+        "    void main() {" +
+        "        vec2 pos      = rect.xy + corner * rect.zw;" +
+        "        gl_Position   = VP * vec4(pos,0,1);" +
+        "        vs_out.uvs    = uvRect.xy + corner * uvRect.zw;" +
+        "        vs_out.colour = colour;" +
+        "    }" +
+        "";
     private static final String FS =
         "#version 330 core\n" +
         "" +
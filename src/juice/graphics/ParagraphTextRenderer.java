@@ -1,6 +1,8 @@
 package juice.graphics;
 
 import juice.Lambda;
+import juice.Resources;
+import juice.events.Events;
 import juice.types.Float2;
 import juice.types.Int2;
 import juice.types.RGBA;
@@ -9,6 +11,7 @@ import org.joml.Matrix4f;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 final public class ParagraphTextRenderer {
     private TextRenderer text;
@@ -18,12 +21,20 @@ final public class ParagraphTextRenderer {
     private int size = 32;
     private int lineSpacing=4, wordSpacing=4;
     private Rect<Float> prevRect;
+    /** Words laid out by a detached copy. Null when writing straight to text */
+    private List<Word> words;
+    private CompletableFuture<?> lastLayout = CompletableFuture.completedFuture(null);
 
     private static final class Token {
         String s;
         Float2 dim;
         Token(String s, Float2 dim) { this.s = s; this.dim = dim; }
     }
+    private static final class Word {
+        String s;
+        Int2 pos;
+        Word(String s, Int2 pos) { this.s = s; this.pos = pos; }
+    }
 
     public ParagraphTextRenderer(Font font, Int2 pos, Int2 size) {
         this.font = font;
@@ -134,6 +145,21 @@ final public class ParagraphTextRenderer {
 
         return this;
     }
+    /**
+     * The async versions measure and lay out the words on a Resources worker
+     * and only append the text on the render thread. Calls are applied in
+     * order. Do not call the other text methods until the returned future
+     * has completed.
+     */
+    public CompletableFuture<ParagraphTextRenderer> leftAsync(String str) {
+        return layoutAsync(p -> p.left(str));
+    }
+    public CompletableFuture<ParagraphTextRenderer> centredAsync(String str) {
+        return layoutAsync(p -> p.centred(str));
+    }
+    public CompletableFuture<ParagraphTextRenderer> justifiedAsync(String multilineString) {
+        return layoutAsync(p -> p.justified(multilineString));
+    }
     public ParagraphTextRenderer clear() {
         text.clearText();
         reset();
@@ -142,7 +168,37 @@ final public class ParagraphTextRenderer {
     public void render() {
         text.render();
     }
+    public void render(BatchRenderer batch) {
+        text.render(batch);
+    }
     //======================================================================
+    private ParagraphTextRenderer(ParagraphTextRenderer p) {
+        this.font        = p.font;
+        this.rect        = p.rect;
+        this.size        = p.size;
+        this.lineSpacing = p.lineSpacing;
+        this.wordSpacing = p.wordSpacing;
+        this.prevRect    = new Rect<>(p.prevRect.x, p.prevRect.y, p.prevRect.w, p.prevRect.h);
+        this.words       = new ArrayList<>();
+    }
+    private CompletableFuture<ParagraphTextRenderer> layoutAsync(Lambda.AV<ParagraphTextRenderer> layout) {
+        var f = lastLayout
+            .thenApplyAsync(v -> {
+                var copy = new ParagraphTextRenderer(this);
+                layout.call(copy);
+                return copy;
+            }, Resources.workers())
+            .thenApplyAsync(copy -> {
+                for(var w : copy.words) {
+                    text.appendText(w.s, w.pos);
+                }
+                prevRect = copy.prevRect;
+                return this;
+            }, Events.get());
+        // Carry on after a failed layout
+        lastLayout = f.handle((r, e) -> null);
+        return f;
+    }
     private void reset() {
         prevRect = new Rect<>((float)rect.x, (float)rect.y, 0f,0f);
     }
@@ -175,6 +231,11 @@ final public class ParagraphTextRenderer {
 
         prevRect = new Rect<>(x,y, textDim.getX() + wordSpacing, textDim.getY());
 
-        text.appendText(s, new Int2((int)x, (int)y));
+        var pos = new Int2((int)x, (int)y);
+        if(words != null) {
+            words.add(new Word(s, pos));
+        } else {
+            text.appendText(s, pos);
+        }
     }
 }
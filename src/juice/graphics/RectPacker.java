@@ -0,0 +1,115 @@
+package juice.graphics;
+
+import juice.types.Int2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs rectangles into a fixed size area using the skyline bottom-left
+ * heuristic. The skyline is the top edge of everything packed so far,
+ * stored as a list of horizontal segments. Each rectangle is placed where
+ * its top edge would be lowest.
+ */
+final public class RectPacker {
+    private final int width, height;
+    private List<Segment> skyline = new ArrayList<>();
+    private long usedArea;
+
+    private static final class Segment {
+        int x, y, w;
+        Segment(int x, int y, int w) { this.x = x; this.y = y; this.w = w; }
+    }
+    //====================================================================================
+    public RectPacker(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        skyline.add(new Segment(0, 0, width));
+    }
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    /** Fraction of the area that has been packed. */
+    public float getOccupancy() {
+        return usedArea / (float)((long)width*height);
+    }
+    /**
+     * @return The top left position of the packed rectangle
+     *         or null if there is no room for it.
+     */
+    public Int2 pack(int w, int h) {
+        int bestIndex = -1;
+        int bestY     = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+
+        for(int i=0; i<skyline.size(); i++) {
+            int y = fit(i, w, h);
+            if(y < 0) continue;
+
+            var s = skyline.get(i);
+            if(y+h < bestY || (y+h == bestY && s.w < bestWidth)) {
+                bestIndex = i;
+                bestY     = y+h;
+                bestWidth = s.w;
+            }
+        }
+        if(bestIndex == -1) return null;
+
+        int x = skyline.get(bestIndex).x;
+        int y = bestY - h;
+        insert(bestIndex, x, bestY, w);
+        usedArea += (long)w*h;
+        return new Int2(x, y);
+    }
+    public void clear() {
+        skyline.clear();
+        skyline.add(new Segment(0, 0, width));
+        usedArea = 0;
+    }
+    //====================================================================================
+    /** @return the y a rectangle would sit at if placed at segment index or -1 if it does not fit. */
+    private int fit(int index, int w, int h) {
+        var s = skyline.get(index);
+        if(s.x + w > width) return -1;
+
+        int y         = s.y;
+        int widthLeft = w;
+        int i         = index;
+        while(widthLeft > 0) {
+            var seg = skyline.get(i);
+            y = Math.max(y, seg.y);
+            if(y + h > height) return -1;
+            widthLeft -= seg.w;
+            i++;
+        }
+        return y;
+    }
+    private void insert(int index, int x, int y, int w) {
+        skyline.add(index, new Segment(x, y, w));
+
+        // Trim the segments now hidden under the new one
+        for(int i=index+1; i<skyline.size(); ) {
+            var prev = skyline.get(i-1);
+            var s    = skyline.get(i);
+            int end  = prev.x + prev.w;
+            if(s.x >= end) break;
+
+            int shrink = end - s.x;
+            s.x += shrink;
+            s.w -= shrink;
+            if(s.w > 0) break;
+            skyline.remove(i);
+        }
+
+        // Merge neighbours at the same height
+        for(int i=0; i<skyline.size()-1; ) {
+            var s    = skyline.get(i);
+            var next = skyline.get(i+1);
+            if(s.y == next.y) {
+                s.w += next.w;
+                skyline.remove(i+1);
+            } else {
+                i++;
+            }
+        }
+    }
+}
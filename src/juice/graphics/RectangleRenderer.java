@@ -8,22 +8,33 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import static juice.Util.putBytes;
 import static org.lwjgl.BufferUtils.createByteBuffer;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
-import static org.lwjgl.opengl.GL20.GL_FRAGMENT_SHADER;
-import static org.lwjgl.opengl.GL20.GL_VERTEX_SHADER;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
 
 /**
  * Display coloured (non-textured) rectangles.
+ *
+ * In instanced mode a single static unit quad is drawn once per rectangle
+ * and each rectangle uploads one compact instance record instead of 6 vertices.
  */
 final public class RectangleRenderer {
+    private static final int VERTEX_SIZE   = 2 * 4 +       // pos
+                                             4 * 4;        // rgba
+    private static final int INSTANCE_SIZE = 4 * 2 * 4 +   // 4 positions
+                                             4 * 4;        // 4 rgba8 colours
+
     private VAO vao;
-    private VBO vbo;
+    private VBO vbo, quadVbo;
     private ByteBuffer buffer;
     private GLShaderProgram prog;
-    private boolean verticesChanged = true;
+    private Matrix4f viewProj = new Matrix4f();
+    private DirtyRange dirty = new DirtyRange();
+    private boolean instanced = false;
     private List<Rectangle> rectangles = new ArrayList<>();
+    private GPUTimings.Timer gpuTimer = GPUTimings.timer(this);
 
     // Asummes vertices are in clockwise order:
     //
@@ -69,106 +80,184 @@ final public class RectangleRenderer {
 
     public RectangleRenderer() {
         this.vao  = new VAO();
-        this.prog = new GLShaderProgram()
-            .shaderSource(GL_VERTEX_SHADER, VS)
-            .shaderSource(GL_FRAGMENT_SHADER, FS)
-            .link();
+        this.prog = GLShaderProgram.get(VS, FS);
     }
     public void destroy() {
         if(vbo!=null) vbo.destroy();
-        prog.destroy();
+        if(quadVbo!=null) quadVbo.destroy();
+        prog.release();
         vao.destroy();
+        gpuTimer.destroy();
     }
     public RectangleRenderer setVP(Matrix4f viewProj) {
-        prog.use().setUniform("VP", viewProj);
+        this.viewProj = viewProj;
+        return this;
+    }
+    /** Draw using one instance record per rectangle. */
+    public RectangleRenderer setInstanced(boolean flag) {
+        if(flag==instanced) return this;
+
+        instanced = flag;
+        if(vbo!=null) vbo.destroy();
+        if(quadVbo!=null) quadVbo.destroy();
+        vbo     = null;
+        quadVbo = null;
+        vao.destroy();
+        vao = new VAO();
+        prog.release();
+        prog = instanced ? GLShaderProgram.get(VS_Instanced, FS) : GLShaderProgram.get(VS, FS);
+        dirty.markAll(rectangles.size());
         return this;
     }
     public RectangleRenderer addRectangle(Rectangle r) {
         rectangles.add(r);
-        verticesChanged = true;
+        dirty.mark(rectangles.size()-1);
         return this;
     }
     public RectangleRenderer setRectangle(int index, Rectangle r) {
         rectangles.set(index, r);
-        verticesChanged = true;
+        dirty.mark(index);
         return this;
     }
     public RectangleRenderer removeRectangle(int index) {
         rectangles.remove(index);
-        verticesChanged = true;
+        // Subsequent rectangles move down one slot
+        dirty.mark(index, rectangles.size());
         return this;
     }
     public RectangleRenderer clearRectangles() {
         rectangles.clear();
-        verticesChanged = true;
+        dirty.clear();
         return this;
     }
     public void render() {
         if(rectangles.size()==0) return;
+        gpuTimer.begin();
         vao.bind();
-        prog.use();
+        prog.use().setUniform("VP", viewProj);
         populateVbo();
 
-        glDrawArrays(GL_TRIANGLES, 0, rectangles.size() * 6);   // 6 vertices
+        if(instanced) {
+            glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, rectangles.size());
+        } else {
+            glDrawArrays(GL_TRIANGLES, 0, rectangles.size() * 6);   // 6 vertices
+        }
+        DrawStats.drawCall();
+        gpuTimer.end();
+    }
+    /** Submit to the frame batch or render immediately if there is no batch. */
+    public void render(BatchRenderer batch) {
+        if(batch==null) {
+            render();
+            return;
+        }
+        for(var r : rectangles) {
+            batch.colourQuad(r.p0, r.p1, r.p2, r.p3, r.c0, r.c1, r.c2, r.c3);
+        }
     }
     //==========================================================================
     private void populateVbo() {
-        if(!verticesChanged) return;
+        if(dirty.isEmpty()) return;
 
-        final int VERTEX_SIZE = 2 * 4 + // pos
-                                4 * 4;  // rgba
+        final int SLOT_SIZE = instanced ? INSTANCE_SIZE : VERTEX_SIZE * 6;
+        int count           = rectangles.size();
+        int bytesRequired   = count * SLOT_SIZE;
 
-        int bytesRequired = rectangles.size() * VERTEX_SIZE * 6;
-
-        // alloc and bind the VBO
-        if(vbo == null) {
-            vbo = VBO.makeArray(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
-        } else if(bytesRequired > (int)vbo.sizeBytes) {
-            vbo.bind();
-            vbo.realloc(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
+        // alloc and bind the VBO. Grow with some headroom so that
+        // appending does not force the whole buffer to be rewritten
+        if(vbo == null || bytesRequired > (int)vbo.sizeBytes) {
+            int capacity = Math.max(bytesRequired, vbo==null ? 0 : (int)vbo.sizeBytes * 2);
+            if(vbo == null) {
+                vbo = VBO.makeArray(capacity, GL_DYNAMIC_DRAW);
+            } else {
+                vbo.bind();
+                vbo.realloc(capacity, GL_DYNAMIC_DRAW);
+            }
+            buffer = createByteBuffer(capacity);
+            enableAttribs();
+            dirty.markAll(count);
         } else {
             vbo.bind();
         }
 
-        buffer.position(0);
-        rectangles.forEach(q -> {
-            // 0-1
-            // |/|
-            // 3-2
-            buffer.putFloat(q.p0.getX()); buffer.putFloat(q.p0.getY());          // 0
-            buffer.putFloat(q.c0.r); buffer.putFloat(q.c0.g);
-            buffer.putFloat(q.c0.b); buffer.putFloat(q.c0.a);
+        // Only rewrite and upload the dirty slots
+        for(int r=0; r<dirty.size(); r++) {
+            int from = dirty.from(r);
+            int to   = Math.min(dirty.to(r), count);
+            if(from >= to) continue;
 
-            buffer.putFloat(q.p3.getX()); buffer.putFloat(q.p3.getY());          // 3
-            buffer.putFloat(q.c3.r); buffer.putFloat(q.c3.g);
-            buffer.putFloat(q.c3.b); buffer.putFloat(q.c3.a);
+            buffer.clear().position(from * SLOT_SIZE);
+            for(int i=from; i<to; i++) {
+                if(instanced) {
+                    putInstance(rectangles.get(i));
+                } else {
+                    putVertices(rectangles.get(i));
+                }
+            }
+            buffer.flip().position(from * SLOT_SIZE);
+            vbo.addData(buffer, from * SLOT_SIZE);
+        }
+        dirty.clear();
+    }
+    private void enableAttribs() {
+        if(!instanced) {
+            vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
+            vao.enableAttrib(1, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4);
+            return;
+        }
+        if(quadVbo == null) quadVbo = VBO.makeUnitQuad();
+        quadVbo.bind();
+        vao.enableAttrib(0, 2, GL_FLOAT, false, 2*4, 0);
 
-            buffer.putFloat(q.p1.getX()); buffer.putFloat(q.p1.getY());          // 1
-            buffer.putFloat(q.c1.r); buffer.putFloat(q.c1.g);
-            buffer.putFloat(q.c1.b); buffer.putFloat(q.c1.a);
+        vbo.bind();
+        vao.enableAttrib(1, 4, GL_FLOAT, false, INSTANCE_SIZE, 0);
+        vao.enableAttrib(2, 4, GL_FLOAT, false, INSTANCE_SIZE, 4*4);
+        vao.enableAttrib(3, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, 8*4);
+        vao.enableAttrib(4, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, 8*4 + 4);
+        vao.enableAttrib(5, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, 8*4 + 8);
+        vao.enableAttrib(6, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, 8*4 + 12);
+        for(int i=1; i<=6; i++) {
+            vao.setDivisor(i, 1);
+        }
+    }
+    private void putVertices(Rectangle q) {
+        // 0-1
+        // |/|
+        // 3-2
+        buffer.putFloat(q.p0.getX()); buffer.putFloat(q.p0.getY());          // 0
+        buffer.putFloat(q.c0.r); buffer.putFloat(q.c0.g);
+        buffer.putFloat(q.c0.b); buffer.putFloat(q.c0.a);
 
+        buffer.putFloat(q.p3.getX()); buffer.putFloat(q.p3.getY());          // 3
+        buffer.putFloat(q.c3.r); buffer.putFloat(q.c3.g);
+        buffer.putFloat(q.c3.b); buffer.putFloat(q.c3.a);
 
-            buffer.putFloat(q.p1.getX()); buffer.putFloat(q.p1.getY());          // 1
-            buffer.putFloat(q.c1.r); buffer.putFloat(q.c1.g);
-            buffer.putFloat(q.c1.b); buffer.putFloat(q.c1.a);
+        buffer.putFloat(q.p1.getX()); buffer.putFloat(q.p1.getY());          // 1
+        buffer.putFloat(q.c1.r); buffer.putFloat(q.c1.g);
+        buffer.putFloat(q.c1.b); buffer.putFloat(q.c1.a);
 
-            buffer.putFloat(q.p3.getX()); buffer.putFloat(q.p3.getY());          // 3
-            buffer.putFloat(q.c3.r); buffer.putFloat(q.c3.g);
-            buffer.putFloat(q.c3.b); buffer.putFloat(q.c3.a);
 
-            buffer.putFloat(q.p2.getX()); buffer.putFloat(q.p2.getY());         // 2
-            buffer.putFloat(q.c2.r); buffer.putFloat(q.c2.g);
-            buffer.putFloat(q.c2.b); buffer.putFloat(q.c2.a);
-        });
-        buffer.position(0);
-        vbo.addData(buffer);
+        buffer.putFloat(q.p1.getX()); buffer.putFloat(q.p1.getY());          // 1
+        buffer.putFloat(q.c1.r); buffer.putFloat(q.c1.g);
+        buffer.putFloat(q.c1.b); buffer.putFloat(q.c1.a);
 
-        vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
-        vao.enableAttrib(1, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4);
+        buffer.putFloat(q.p3.getX()); buffer.putFloat(q.p3.getY());          // 3
+        buffer.putFloat(q.c3.r); buffer.putFloat(q.c3.g);
+        buffer.putFloat(q.c3.b); buffer.putFloat(q.c3.a);
 
-        verticesChanged = false;
+        buffer.putFloat(q.p2.getX()); buffer.putFloat(q.p2.getY());         // 2
+        buffer.putFloat(q.c2.r); buffer.putFloat(q.c2.g);
+        buffer.putFloat(q.c2.b); buffer.putFloat(q.c2.a);
+    }
+    private void putInstance(Rectangle q) {
+        buffer.putFloat(q.p0.getX()); buffer.putFloat(q.p0.getY());
+        buffer.putFloat(q.p1.getX()); buffer.putFloat(q.p1.getY());
+        buffer.putFloat(q.p2.getX()); buffer.putFloat(q.p2.getY());
+        buffer.putFloat(q.p3.getX()); buffer.putFloat(q.p3.getY());
+        putBytes(buffer, q.c0);
+        putBytes(buffer, q.c1);
+        putBytes(buffer, q.c2);
+        putBytes(buffer, q.c3);
     }
     private static final String VS =
         "#version 330 core\n" +
@@ -187,6 +276,31 @@ final public class RectangleRenderer {
         "        vs_out.colour = colour;" +
         "    }" +
         "";
+    private static final String VS_Instanced =
+        "#version 330 core\n" +
+        "" +
+        "    layout(location = 0) in vec2 corner;" +
+        "    layout(location = 1) in vec4 p01;" +
+        "    layout(location = 2) in vec4 p23;" +
+        "    layout(location = 3) in vec4 c0;" +
+        "    layout(location = 4) in vec4 c1;" +
+        "    layout(location = 5) in vec4 c2;" +
+        "    layout(location = 6) in vec4 c3;" +
+        "" +
+        "    uniform mat4 VP;" +
+        "" +
+        "    out VS_OUT {" +
+        "        vec4 colour;" +
+        "    } vs_out;" +
+        "" +
+        "    void main() {" +
+        "        vec2 top      = mix(p01.xy, p01.zw, corner.x);" +
+        "        vec2 bottom   = mix(p23.zw, p23.xy, corner.x);" +
+        "        vec2 pos      = mix(top, bottom, corner.y);" +
+        "        gl_Position   = VP * vec4(pos,0,1);" +
+        "        vs_out.colour = mix(mix(c0, c1, corner.x), mix(c3, c2, corner.x), corner.y);" +
+        "    }" +
+        "";
     private static final String FS =
         "#version 330 core\n" +
         "" +
@@ -8,20 +8,41 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import static juice.Util.putBytes;
 import static juice.Util.putFloats;
 import static org.lwjgl.BufferUtils.createByteBuffer;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
-import static org.lwjgl.opengl.GL20.GL_FRAGMENT_SHADER;
-import static org.lwjgl.opengl.GL20.GL_VERTEX_SHADER;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
 
+/**
+ * Display coloured rectangles with rounded corners.
+ *
+ * In instanced mode a single static unit quad is drawn once per rectangle
+ * and each rectangle uploads one compact instance record instead of 6 vertices.
+ */
 final public class RoundRectangleRenderer {
+    private static final int FLOAT = 4;
+    private static final int VEC2  = 2*4;
+    private static final int VEC4  = 4*4;
+
+    private static final int VERTEX_SIZE   = VEC2 +    // vertex pos
+                                             FLOAT +   // vertex radius
+                                             VEC4 +    // rect pos and size
+                                             VEC4;     // vertex colour
+    private static final int INSTANCE_SIZE = VEC4 +    // rect pos and size
+                                             VEC4 +    // corner radii
+                                             4 * 4;    // 4 rgba8 corner colours
+
     private VAO vao;
-    private VBO vbo;
+    private VBO vbo, quadVbo;
     private ByteBuffer buffer;
     private GLShaderProgram prog;
-    private boolean verticesChanged = true;
+    private Matrix4f viewProj = new Matrix4f();
+    private DirtyRange dirty = new DirtyRange();
+    private boolean instanced = false;
     private List<Rectangle> rectangles = new ArrayList<>();
+    private GPUTimings.Timer gpuTimer = GPUTimings.timer(this);
 
     // Asummes vertices are in clockwise order:
     //
@@ -54,28 +75,43 @@ final public class RoundRectangleRenderer {
 
     public RoundRectangleRenderer() {
         this.vao  = new VAO();
-        this.prog = new GLShaderProgram()
-            .shaderSource(GL_VERTEX_SHADER, VS)
-            .shaderSource(GL_FRAGMENT_SHADER, FS)
-            .link();
+        this.prog = GLShaderProgram.get(VS, FS);
     }
     public void destroy() {
         if(vbo!=null) vbo.destroy();
-        prog.destroy();
+        if(quadVbo!=null) quadVbo.destroy();
+        prog.release();
         vao.destroy();
+        gpuTimer.destroy();
     }
     public RoundRectangleRenderer setVP(Matrix4f viewProj) {
-        prog.use().setUniform("VP", viewProj);
+        this.viewProj = viewProj;
+        return this;
+    }
+    /** Draw using one instance record per rectangle. */
+    public RoundRectangleRenderer setInstanced(boolean flag) {
+        if(flag==instanced) return this;
+
+        instanced = flag;
+        if(vbo!=null) vbo.destroy();
+        if(quadVbo!=null) quadVbo.destroy();
+        vbo     = null;
+        quadVbo = null;
+        vao.destroy();
+        vao = new VAO();
+        prog.release();
+        prog = instanced ? GLShaderProgram.get(VS_Instanced, FS) : GLShaderProgram.get(VS, FS);
+        dirty.markAll(rectangles.size());
         return this;
     }
     public RoundRectangleRenderer addRectangle(Rectangle r) {
         rectangles.add(r);
-        verticesChanged = true;
+        dirty.mark(rectangles.size()-1);
         return this;
     }
     public RoundRectangleRenderer setRectangle(int index, Rectangle r) {
         rectangles.set(index, r);
-        verticesChanged = true;
+        dirty.mark(index);
         return this;
     }
     public RoundRectangleRenderer setRectanglePos(int index, Int2 pos) {
@@ -83,7 +119,7 @@ final public class RoundRectangleRenderer {
         if(r.pos.equals(pos)) return this;
 
         r.pos = pos;
-        verticesChanged = true;
+        dirty.mark(index);
         return this;
     }
     public RoundRectangleRenderer setRectangleSize(int index, Int2 size) {
@@ -91,109 +127,161 @@ final public class RoundRectangleRenderer {
         if(r.size.equals(size)) return this;
 
         r.size = size;
-        verticesChanged = true;
+        dirty.mark(index);
         return this;
     }
     public RoundRectangleRenderer removeRectangle(int index) {
         if(index < rectangles.size()) {
             rectangles.remove(index);
-            verticesChanged = true;
+            // Subsequent rectangles move down one slot
+            dirty.mark(index, rectangles.size());
         }
         return this;
     }
     public RoundRectangleRenderer clearRectangles() {
         rectangles.clear();
-        verticesChanged = true;
+        dirty.clear();
         return this;
     }
     public void render() {
         if(rectangles.size()==0) return;
+        gpuTimer.begin();
         vao.bind();
-        prog.use();
+        prog.use().setUniform("VP", viewProj);
         populateVbo();
 
-        glDrawArrays(GL_TRIANGLES, 0, rectangles.size() * 6);   // 6 vertices
+        if(instanced) {
+            glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, rectangles.size());
+        } else {
+            glDrawArrays(GL_TRIANGLES, 0, rectangles.size() * 6);   // 6 vertices
+        }
+        DrawStats.drawCall();
+        gpuTimer.end();
+    }
+    /** Submit to the frame batch or render immediately if there is no batch. */
+    public void render(BatchRenderer batch) {
+        if(batch==null) {
+            render();
+            return;
+        }
+        for(var r : rectangles) {
+            batch.roundRect(r.pos, r.size, r.colour, r.radius);
+        }
     }
     //===================================================================
     private void populateVbo() {
-        if(!verticesChanged) return;
+        if(dirty.isEmpty()) return;
 
-        final int FLOAT = 4;
-        final int VEC2  = 2*4;
-        final int VEC4  = 4*4;
+        final int SLOT_SIZE = instanced ? INSTANCE_SIZE : VERTEX_SIZE * 6;
+        int count           = rectangles.size();
+        int bytesRequired   = count * SLOT_SIZE;
 
-        final int VERTEX_SIZE = VEC2 +  // vertex pos
-                                FLOAT + // vertex radius
-                                VEC4 +  // rect pos and size
-                                VEC4;   // vertex colour
-
-        int bytesRequired = rectangles.size() * VERTEX_SIZE * 6;
-
-        // alloc and bind the VBO
-        if(vbo == null) {
-            vbo = VBO.makeArray(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
-        } else if(bytesRequired > (int)vbo.sizeBytes) {
-            vbo.bind();
-            vbo.realloc(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
+        // alloc and bind the VBO. Grow with some headroom so that
+        // appending does not force the whole buffer to be rewritten
+        if(vbo == null || bytesRequired > (int)vbo.sizeBytes) {
+            int capacity = Math.max(bytesRequired, vbo==null ? 0 : (int)vbo.sizeBytes * 2);
+            if(vbo == null) {
+                vbo = VBO.makeArray(capacity, GL_DYNAMIC_DRAW);
+            } else {
+                vbo.bind();
+                vbo.realloc(capacity, GL_DYNAMIC_DRAW);
+            }
+            buffer = createByteBuffer(capacity);
+            enableAttribs();
+            dirty.markAll(count);
         } else {
             vbo.bind();
         }
 
-        buffer.position(0);
-        rectangles.forEach(q -> {
-            // 0-1
-            // |/|
-            // 3-2
-            putFloats(buffer, q.pos);                       // 0
-            putFloats(buffer, q.radius[0]);
-            putFloats(buffer, q.pos);
-            putFloats(buffer, q.size);
-            putFloats(buffer, q.colour[0]);
+        // Only rewrite and upload the dirty slots
+        for(int r=0; r<dirty.size(); r++) {
+            int from = dirty.from(r);
+            int to   = Math.min(dirty.to(r), count);
+            if(from >= to) continue;
 
-            putFloats(buffer, q.pos.add(0, q.size.getY())); // 3
-            putFloats(buffer, q.radius[3]);
-            putFloats(buffer, q.pos);
-            putFloats(buffer, q.size);
-            putFloats(buffer, q.colour[3]);
-
-            putFloats(buffer, q.pos.add(q.size.getX(), 0)); // 1
-            putFloats(buffer, q.radius[1]);
-            putFloats(buffer, q.pos);
-            putFloats(buffer, q.size);
-            putFloats(buffer, q.colour[1]);
+            buffer.clear().position(from * SLOT_SIZE);
+            for(int i=from; i<to; i++) {
+                if(instanced) {
+                    putInstance(rectangles.get(i));
+                } else {
+                    putVertices(rectangles.get(i));
+                }
+            }
+            buffer.flip().position(from * SLOT_SIZE);
+            vbo.addData(buffer, from * SLOT_SIZE);
+        }
+        dirty.clear();
+    }
+    private void enableAttribs() {
+        if(!instanced) {
+            vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
+            vao.enableAttrib(1, 1, GL_FLOAT, false, VERTEX_SIZE, VEC2);
+            vao.enableAttrib(2, 4, GL_FLOAT, false, VERTEX_SIZE, VEC2+FLOAT);
+            vao.enableAttrib(3, 4, GL_FLOAT, false, VERTEX_SIZE, VEC2+FLOAT+VEC4);
+            return;
+        }
+        if(quadVbo == null) quadVbo = VBO.makeUnitQuad();
+        quadVbo.bind();
+        vao.enableAttrib(0, 2, GL_FLOAT, false, 2*4, 0);
 
+        vbo.bind();
+        vao.enableAttrib(1, 4, GL_FLOAT, false, INSTANCE_SIZE, 0);
+        vao.enableAttrib(2, 4, GL_FLOAT, false, INSTANCE_SIZE, VEC4);
+        vao.enableAttrib(3, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, VEC4+VEC4);
+        vao.enableAttrib(4, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, VEC4+VEC4 + 4);
+        vao.enableAttrib(5, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, VEC4+VEC4 + 8);
+        vao.enableAttrib(6, 4, GL_UNSIGNED_BYTE, true, INSTANCE_SIZE, VEC4+VEC4 + 12);
+        for(int i=1; i<=6; i++) {
+            vao.setDivisor(i, 1);
+        }
+    }
+    private void putVertices(Rectangle q) {
+        // 0-1
+        // |/|
+        // 3-2
+        putFloats(buffer, q.pos);                       // 0
+        putFloats(buffer, q.radius[0]);
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        putFloats(buffer, q.colour[0]);
 
+        putFloats(buffer, q.pos.add(0, q.size.getY())); // 3
+        putFloats(buffer, q.radius[3]);
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        putFloats(buffer, q.colour[3]);
 
-            putFloats(buffer, q.pos.add(q.size.getX(), 0)); // 1
-            putFloats(buffer, q.radius[1]);
-            putFloats(buffer, q.pos);
-            putFloats(buffer, q.size);
-            putFloats(buffer, q.colour[1]);
+        putFloats(buffer, q.pos.add(q.size.getX(), 0)); // 1
+        putFloats(buffer, q.radius[1]);
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        putFloats(buffer, q.colour[1]);
 
-            putFloats(buffer, q.pos.add(0, q.size.getY())); // 3
-            putFloats(buffer, q.radius[3]);
-            putFloats(buffer, q.pos);
-            putFloats(buffer, q.size);
-            putFloats(buffer, q.colour[3]);
 
-            putFloats(buffer, q.pos.add(q.size));           // 2
-            putFloats(buffer, q.radius[2]);
-            putFloats(buffer, q.pos);
-            putFloats(buffer, q.size);
-            putFloats(buffer, q.colour[2]);
 
-        });
-        buffer.position(0);
-        vbo.addData(buffer);
+        putFloats(buffer, q.pos.add(q.size.getX(), 0)); // 1
+        putFloats(buffer, q.radius[1]);
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        putFloats(buffer, q.colour[1]);
 
-        vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
-        vao.enableAttrib(1, 1, GL_FLOAT, false, VERTEX_SIZE, VEC2);
-        vao.enableAttrib(2, 4, GL_FLOAT, false, VERTEX_SIZE, VEC2+FLOAT);
-        vao.enableAttrib(3, 4, GL_FLOAT, false, VERTEX_SIZE, VEC2+FLOAT+VEC4);
+        putFloats(buffer, q.pos.add(0, q.size.getY())); // 3
+        putFloats(buffer, q.radius[3]);
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        putFloats(buffer, q.colour[3]);
 
-        verticesChanged = false;
+        putFloats(buffer, q.pos.add(q.size));           // 2
+        putFloats(buffer, q.radius[2]);
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        putFloats(buffer, q.colour[2]);
+    }
+    private void putInstance(Rectangle q) {
+        putFloats(buffer, q.pos);
+        putFloats(buffer, q.size);
+        for(var r : q.radius) putFloats(buffer, r);
+        for(var c : q.colour) putBytes(buffer, c);
     }
     private static final String VS =
         "#version 330 core\n" +
@@ -222,6 +310,37 @@ final public class RoundRectangleRenderer {
             "        vs_out.radius   = radius;" +
             "    }" +
             "";
+    private static final String VS_Instanced =
+        "#version 330 core\n" +
+            "" +
+            "    layout(location = 0) in vec2 corner;" +
+            "    layout(location = 1) in vec4 rectPosAndSize;" +
+            "    layout(location = 2) in vec4 radii;" +
+            "    layout(location = 3) in vec4 c0;" +
+            "    layout(location = 4) in vec4 c1;" +
+            "    layout(location = 5) in vec4 c2;" +
+            "    layout(location = 6) in vec4 c3;" +
+            "" +
+            "    uniform mat4 VP;" +
+            "" +
+            "    out VS_OUT {" +
+            "        vec2 pixelPos;" +
+            "        flat vec2 rectPos;" +
+            "        flat vec2 rectSize;" +
+            "        vec4 colour;" +
+            "        float radius;" +
+            "    } vs_out;" +
+            "" +
+            "    void main() {" +
+            "        vec2 pos        = rectPosAndSize.xy + corner * rectPosAndSize.zw;" +
+            "        gl_Position     = VP * vec4(pos,0,1);" +
+            "        vs_out.pixelPos = pos;" +
+            "        vs_out.rectPos  = rectPosAndSize.xy;" +
+            "        vs_out.rectSize = rectPosAndSize.zw;" +
+            "        vs_out.colour   = mix(mix(c0, c1, corner.x), mix(c3, c2, corner.x), corner.y);" +
+            "        vs_out.radius   = mix(mix(radii.x, radii.y, corner.x), mix(radii.w, radii.z, corner.x), corner.y);" +
+            "    }" +
+            "";
     private static final String FS =
         "#version 330 core\n" +
             "\n" +
@@ -0,0 +1,141 @@
+package juice.graphics;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * An array buffer for vertex data that is rewritten every frame.
+ *
+ * The buffer is split into a ring of NUM_SEGMENTS segments. Each map()
+ * moves to the next segment and maps it unsynchronized so the driver
+ * never stalls waiting for the GPU. Instead a fence is placed after the
+ * draws that read a segment and is waited on before the segment is
+ * written again. Vertices are written directly into the mapped memory
+ * so there is no intermediate copy.
+ *
+ * GL 3.3 core has no persistent mapping (ARB_buffer_storage) so each
+ * segment is mapped and unmapped once per use.
+ *
+ *  var buf = stream.map(bytes);
+ *  // write vertices to buf
+ *  stream.unmap();
+ *  glDrawArrays(GL_TRIANGLES, stream.getBaseVertex(), count);
+ *  stream.fence();
+ */
+public final class StreamingVBO {
+    public static final int NUM_SEGMENTS = 3;
+
+    private int id;
+    private int stride;
+    private long segmentSize;
+    private long[] fences = new long[NUM_SEGMENTS];
+    private int segment = NUM_SEGMENTS-1;
+    private ByteBuffer mapped;
+    private int numWaits, numGrows;
+
+    /**
+     * @param stride      Size of one vertex in bytes. Segments are a multiple
+     *                    of this so that each segment starts on a vertex.
+     * @param segmentSize Initial size of each segment in bytes.
+     */
+    public StreamingVBO(int stride, long segmentSize) {
+        this.stride      = stride;
+        this.segmentSize = roundUp(Math.max(segmentSize, stride));
+        this.id          = glGenBuffers();
+        bind();
+        glBufferData(GL_ARRAY_BUFFER, this.segmentSize * NUM_SEGMENTS, GL_STREAM_DRAW);
+    }
+    public void destroy() {
+        deleteFences();
+        glDeleteBuffers(new int[]{id});
+    }
+    public StreamingVBO bind() {
+        glBindBuffer(GL_ARRAY_BUFFER, id);
+        return this;
+    }
+    /** Number of times map() had to block because the GPU was still reading the next segment. */
+    public int getNumWaits() {
+        return numWaits;
+    }
+    public int getNumGrows() {
+        return numGrows;
+    }
+    /** Byte offset of the current segment within the buffer. */
+    public long getOffset() {
+        return segment * segmentSize;
+    }
+    /** Index of the first vertex of the current segment. */
+    public int getBaseVertex() {
+        return (int)(getOffset() / stride);
+    }
+    /**
+     * Move to the next segment and map the first numBytes of it for writing.
+     * Leaves the buffer bound.
+     */
+    public ByteBuffer map(long numBytes) {
+        bind();
+
+        if(numBytes > segmentSize) {
+            grow(numBytes);
+        }
+
+        segment = (segment+1) % NUM_SEGMENTS;
+        waitFor(segment);
+
+        mapped = glMapBufferRange(GL_ARRAY_BUFFER, getOffset(), Math.max(numBytes, stride),
+                                  GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT,
+                                  mapped);
+        if(mapped == null) throw new RuntimeException("Unable to map streaming buffer");
+        mapped.clear();
+        return mapped;
+    }
+    public StreamingVBO unmap() {
+        bind();
+        glUnmapBuffer(GL_ARRAY_BUFFER);
+        return this;
+    }
+    /** Call after the draws that read the current segment have been issued. */
+    public StreamingVBO fence() {
+        if(fences[segment]!=0) glDeleteSync(fences[segment]);
+        fences[segment] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        return this;
+    }
+    //====================================================================================
+    private void waitFor(int seg) {
+        long f = fences[seg];
+        if(f==0) return;
+
+        if(glClientWaitSync(f, 0, 0) == GL_TIMEOUT_EXPIRED) {
+            numWaits++;
+            while(glClientWaitSync(f, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000) == GL_TIMEOUT_EXPIRED) {
+                // wait
+            }
+        }
+        glDeleteSync(f);
+        fences[seg] = 0;
+    }
+    /**
+     * Orphan the current storage and allocate a larger one. The driver keeps
+     * the old storage alive until the GPU has finished with it so the
+     * existing fences are no longer needed.
+     */
+    private void grow(long numBytes) {
+        segmentSize = roundUp(Math.max(numBytes, segmentSize*2));
+        glBufferData(GL_ARRAY_BUFFER, segmentSize * NUM_SEGMENTS, GL_STREAM_DRAW);
+        deleteFences();
+        segment = NUM_SEGMENTS-1;
+        numGrows++;
+    }
+    private void deleteFences() {
+        for(int i=0; i<NUM_SEGMENTS; i++) {
+            if(fences[i]!=0) glDeleteSync(fences[i]);
+            fences[i] = 0;
+        }
+    }
+    private long roundUp(long bytes) {
+        return ((bytes + stride - 1) / stride) * stride;
+    }
+}
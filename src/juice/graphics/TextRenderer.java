@@ -14,27 +14,59 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
 import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
-import static org.lwjgl.opengl.GL20.GL_FRAGMENT_SHADER;
-import static org.lwjgl.opengl.GL20.GL_VERTEX_SHADER;
-
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memSet;
+
+/**
+ * Each chunk of text owns a contiguous run of glyph slots in the VBO.
+ * Changes only rewrite the slots of the affected chunks. Removed or
+ * shortened text leaves unused slots behind which are compacted once
+ * they make up more than half of the buffer.
+ *
+ * For text that changes every frame setStreaming(true) writes all of the
+ * glyphs straight into a StreamingVBO instead, avoiding the CPU side copy
+ * and any driver stall on a buffer that is still in use.
+ *
+ * Glyphs are read from the shared GlyphAtlas so chunks may use
+ * different fonts and still be drawn together.
+ */
 final public class TextRenderer {
+    private static final int VERTEX_SIZE = 2 * 4 +
+                                           2 * 4 +
+                                           4 * 4 +
+                                           1 * 4 +
+                                           2 * 4;
+    private static final int GLYPH_SIZE  = VERTEX_SIZE * 6;
+
     private VAO vao;
     private VBO vbo;
+    private StreamingVBO stream;
     private ByteBuffer buffer;
     private GLShaderProgram prog, dsProg;
     private Font font;
     private List<Chunk> chunks = new ArrayList<>();
-    private boolean textChanged = true;
-    private int numCharacters;
+    private DirtyRange dirty = new DirtyRange();
+    private int numSlots, numUsedSlots;
     private RGBA colour = RGBA.WHITE;
     private float size;
     private boolean useDropShadow = true;
+    private boolean streaming = false;
+    private RGBA dsColour = new RGBA(0,0,0, 0.75f);
+    private Float2 dsOffset = new Float2(-0.0025f, 0.0025f);
+    private Matrix4f viewProj = new Matrix4f();
+    private GPUTimings.Timer gpuTimer = GPUTimings.timer(this);
+    private GPUTimings.Timer gpuShadowTimer = GPUTimings.timer(this, "shadow");
 
     private static final class Chunk {
         String text;
         Int2 pos;
         RGBA colour;
         float size;
+        Font font;
+        int first, capacity;    // glyph slots
+    }
+    private interface GlyphWriter {
+        void write(Chunk chunk, Font.Char g, float x, float y, float w, float h);
     }
 
     public int getNumChunks() {
@@ -45,39 +77,53 @@ final public class TextRenderer {
         this.font = font;
         this.size = font.size;
         this.vao = new VAO();
-        this.prog = new GLShaderProgram()
-            .shaderSource(GL_VERTEX_SHADER, VS)
-            .shaderSource(GL_FRAGMENT_SHADER, FS)
-            .link();
-        this.dsProg = new GLShaderProgram()
-            .shaderSource(GL_VERTEX_SHADER, VS)
-            .shaderSource(GL_FRAGMENT_SHADER, FS_DropShadow)
-            .link();
+        this.prog   = GLShaderProgram.get(VS, FS);
+        this.dsProg = GLShaderProgram.get(VS, FS_DropShadow);
 
         prog.use().setUniform("SAMPLER0", 0);
         dsProg.use().setUniform("SAMPLER0", 0);
     }
     public void destroy() {
         if(vbo!=null) vbo.destroy();
+        if(stream!=null) stream.destroy();
         vao.destroy();
-        prog.destroy();
-        dsProg.destroy();
+        prog.release();
+        dsProg.release();
+        gpuTimer.destroy();
+        gpuShadowTimer.destroy();
     }
     public TextRenderer setUseDropShadow(boolean flag) {
         useDropShadow = flag;
         return this;
     }
+    /** Write the text into a ring of mapped buffers. Use for text that changes every frame. */
+    public TextRenderer setStreaming(boolean flag) {
+        if(flag==streaming) return this;
+
+        streaming = flag;
+        if(vbo!=null) vbo.destroy();
+        if(stream!=null) stream.destroy();
+        vbo    = null;
+        stream = null;
+        buffer = null;
+        dirty.markAll(chunks.size());
+        return this;
+    }
     public TextRenderer setVP(Matrix4f viewProj) {
-        prog.use().setUniform("VP", viewProj);
-        dsProg.use().setUniform("VP", viewProj);
+        this.viewProj = viewProj;
         return this;
     }
     public TextRenderer setDropShadowOffset(Float2 offset) {
-        dsProg.use().setUniform("dsOffset", offset.toVector2f());
+        this.dsOffset = offset;
         return this;
     }
     public TextRenderer setDropShadowColour(RGBA colour) {
-        dsProg.use().setUniform("dsColour", colour.toVector4f());
+        this.dsColour = colour;
+        return this;
+    }
+    /** Set the font used by subsequently appended text. */
+    public TextRenderer setFont(Font font) {
+        this.font = font;
         return this;
     }
     public TextRenderer setColour(RGBA c) {
@@ -94,16 +140,26 @@ final public class TextRenderer {
         ch.pos    = pos;
         ch.colour = colour;
         ch.size   = size;
+        ch.font   = font;
+        ch.first    = numSlots;
+        ch.capacity = text.length();
         chunks.add(ch);
-        textChanged = true;
+        numSlots     += ch.capacity;
+        numUsedSlots += ch.capacity;
+        dirty.mark(chunks.size()-1);
         return this;
     }
     public TextRenderer replaceText(int index, String text) {
         var ch = chunks.get(index);
         if(ch.text.equals(text)) return this;
 
+        numUsedSlots += text.length() - ch.text.length();
         ch.text = text;
-        textChanged = true;
+        if(text.length() > ch.capacity) {
+            compact(index);
+        } else {
+            dirty.mark(index);
+        }
         return this;
     }
     public TextRenderer replacePos(int index, Int2 pos) {
@@ -111,7 +167,7 @@ final public class TextRenderer {
         if(ch.pos.equals(pos)) return this;
 
         ch.pos = pos;
-        textChanged = true;
+        dirty.mark(index);
         return this;
     }
     public TextRenderer replaceColour(int index, RGBA colour) {
@@ -119,7 +175,7 @@ final public class TextRenderer {
         if(ch.colour.equals(colour)) return this;
 
         ch.colour = colour;
-        textChanged = true;
+        dirty.mark(index);
         return this;
     }
     public TextRenderer replaceSize(int index, float size) {
@@ -127,17 +183,38 @@ final public class TextRenderer {
         if(ch.size==size) return this;
 
         ch.size = size;
-        textChanged = true;
+        dirty.mark(index);
         return this;
     }
     public TextRenderer removeText(int index) {
-        chunks.remove(index);
-        textChanged = true;
+        var ch = chunks.remove(index);
+        numUsedSlots -= ch.text.length();
+        dirty.remove(index);
+
+        if(index == chunks.size()) {
+            // This was the last chunk
+            numSlots = ch.first;
+        } else if(index > 0) {
+            // Give the slots to the previous chunk
+            chunks.get(index-1).capacity += ch.capacity;
+            dirty.mark(index-1);
+        } else {
+            // Give the slots to the next chunk
+            var next = chunks.get(0);
+            next.first     = ch.first;
+            next.capacity += ch.capacity;
+            dirty.mark(0);
+        }
+        if(numUsedSlots < numSlots/2) {
+            compact(0);
+        }
         return this;
     }
     public TextRenderer clearText() {
         chunks.clear();
-        textChanged = true;
+        numSlots     = 0;
+        numUsedSlots = 0;
+        dirty.clear();
         return this;
     }
     public void render() {
@@ -145,126 +222,239 @@ final public class TextRenderer {
         vao.bind();
         populateVbo();
 
-        glActiveTexture(GL_TEXTURE0 + 0);
-        glBindTexture(GL_TEXTURE_2D, font.texture.id);
+        GlyphAtlas.bind(0);
 
         if(useDropShadow) {
             // Drop shadow
-            dsProg.use();
-            glDrawArrays(GL_TRIANGLES, 0, numCharacters * 6);   // 6 vertices per char
+            gpuShadowTimer.begin();
+            dsProg.use()
+                  .setUniform("VP", viewProj)
+                  .setUniform("dsOffset", dsOffset.toVector2f())
+                  .setUniform("dsColour", dsColour.toVector4f());
+            glDrawArrays(GL_TRIANGLES, firstVertex(), numSlots * 6);   // 6 vertices per char
+            DrawStats.drawCall();
+            gpuShadowTimer.end();
         }
 
         // Normal
-        prog.use();
-        glDrawArrays(GL_TRIANGLES, 0, numCharacters * 6);   // 6 vertices per char
+        gpuTimer.begin();
+        prog.use().setUniform("VP", viewProj);
+        glDrawArrays(GL_TRIANGLES, firstVertex(), numSlots * 6);   // 6 vertices per char
+        DrawStats.drawCall();
+        gpuTimer.end();
+
+        if(streaming) stream.fence();
+    }
+    /** Submit to the frame batch or render immediately if there is no batch. */
+    public void render(BatchRenderer batch) {
+        if(batch==null) {
+            render();
+            return;
+        }
+        if(useDropShadow) {
+            layout((chunk, g, x, y, w, h) ->
+                batch.glyphShadow(x, y, w, h, g.u, g.v, g.u2, g.v2, g.layer, dsColour, chunk.size,
+                                  dsOffset.getX() * chunk.font.uvScale, dsOffset.getY() * chunk.font.uvScale)
+            );
+        }
+        layout((chunk, g, x, y, w, h) ->
+            batch.glyph(x, y, w, h, g.u, g.v, g.u2, g.v2, g.layer, chunk.colour, chunk.size)
+        );
     }
     //====================================================================================
+    private int firstVertex() {
+        return streaming ? stream.getBaseVertex() : 0;
+    }
     private void populateVbo() {
-        if(!textChanged) return;
-
-        numCharacters = chunks.stream().mapToInt(it->it.text.length()).sum();
-
-        final int VERTEX_SIZE = 2 * 4 +
-                                2 * 4 +
-                                4 * 4 +
-                                1 * 4;
+        if(dirty.isEmpty()) return;
+        if(streaming) {
+            streamVbo();
+            return;
+        }
 
-        int bytesRequired = numCharacters * VERTEX_SIZE * 6;
+        int bytesRequired = numSlots * GLYPH_SIZE;
+
+        // alloc and bind the VBO. Grow with some headroom so that
+        // appending does not force the whole buffer to be rewritten
+        if(vbo == null || bytesRequired > (int)vbo.sizeBytes) {
+            int capacity = Math.max(bytesRequired, vbo==null ? 0 : (int)vbo.sizeBytes * 2);
+            if(vbo == null) {
+                vbo = VBO.makeArray(capacity, GL_DYNAMIC_DRAW);
+            } else {
+                vbo.bind();
+                vbo.realloc(capacity, GL_DYNAMIC_DRAW);
+            }
+            buffer = createByteBuffer(capacity);
 
-        // alloc and bind the VBO
-        if(vbo == null) {
-            vbo = VBO.makeArray(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
-        } else if(bytesRequired > (int)vbo.sizeBytes) {
-            vbo.bind();
-            vbo.realloc(bytesRequired, GL_DYNAMIC_DRAW);
-            buffer = createByteBuffer(bytesRequired);
+            enableAttribs();
+            dirty.markAll(chunks.size());
         } else {
             vbo.bind();
         }
 
-        buffer.position(0);
-        chunks.forEach(chunk -> {
-
-            float X  = (float)chunk.pos.getX();
-            float Y  = (float)chunk.pos.getY();
-            int i    = 0;
-
-            for(var c : chunk.text.toCharArray()) {
-
-                var g       = font.page.getChar(c);
-                float ratio = (chunk.size / (float)font.size);
-                float x     = X + g.xoffset * ratio;
-                float y     = Y + g.yoffset * ratio;
-                float w     = g.width * ratio;
-                float h     = g.height * ratio;
-
-                // 0--2
-                // | /|
-                // |/ |
-                // 1--3
-                //
-                buffer.putFloat(x); buffer.putFloat(y);                   // 0
-                buffer.putFloat(g.u); buffer.putFloat(g.v);
-                buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
-                buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
-                buffer.putFloat(chunk.size);
-
-                buffer.putFloat(x); buffer.putFloat(y+h);          // 1
-                buffer.putFloat(g.u); buffer.putFloat(g.v2);
-                buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
-                buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
-                buffer.putFloat(chunk.size);
-
-                buffer.putFloat(x+w); buffer.putFloat(y);          // 2
-                buffer.putFloat(g.u2); buffer.putFloat(g.v);
-                buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
-                buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
-                buffer.putFloat(chunk.size);
-
-
-
-                buffer.putFloat(x+w); buffer.putFloat(y);          // 2
-                buffer.putFloat(g.u2); buffer.putFloat(g.v);
-                buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
-                buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
-                buffer.putFloat(chunk.size);
-
-                buffer.putFloat(x); buffer.putFloat(y+h);          // 1
-                buffer.putFloat(g.u); buffer.putFloat(g.v2);
-                buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
-                buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
-                buffer.putFloat(chunk.size);
-
-                buffer.putFloat(x+w); buffer.putFloat(y+h); // 3
-                buffer.putFloat(g.u2); buffer.putFloat(g.v2);
-                buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
-                buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
-                buffer.putFloat(chunk.size);
-
-                int kerning = 0;
-                if(i+1<chunk.text.length()) {
-                    kerning = font.page.getKerning(c, chunk.text.charAt(i + 1));
-                }
-
-                X += (g.xadvance + kerning) * ratio;
-                i++;
+        // Only rewrite and upload the slots of the dirty chunks
+        for(int r=0; r<dirty.size(); r++) {
+            int from = dirty.from(r);
+            int to   = Math.min(dirty.to(r), chunks.size());
+            if(from >= to) continue;
+
+            var last  = chunks.get(to-1);
+            int start = chunks.get(from).first * GLYPH_SIZE;
+            int end   = (last.first + last.capacity) * GLYPH_SIZE;
+
+            buffer.clear();
+            for(int i=from; i<to; i++) {
+                putChunk(chunks.get(i));
             }
-        });
-        buffer.position(0);
-        vbo.addData(buffer);
+            buffer.position(start).limit(end);
+            vbo.addData(buffer, start);
+        }
+        dirty.clear();
+    }
+    /**
+     * Write every glyph into the next segment of the stream. The previous
+     * segment may still be in use so the whole text is rewritten.
+     */
+    private void streamVbo() {
+        if(stream == null) {
+            stream = new StreamingVBO(VERTEX_SIZE, numSlots * GLYPH_SIZE);
+            enableAttribs();
+        }
+        dirty.clear();
 
+        buffer = stream.map(Math.max(numSlots, 1) * GLYPH_SIZE);
+        for(var ch : chunks) {
+            putChunk(ch);
+        }
+        stream.unmap();
+    }
+    private void enableAttribs() {
         vao.enableAttrib(0, 2, GL_FLOAT, false, VERTEX_SIZE, 0);
         vao.enableAttrib(1, 2, GL_FLOAT, false, VERTEX_SIZE, 2*4);
         vao.enableAttrib(2, 4, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4);
         vao.enableAttrib(3, 1, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4 + 4*4);
-        textChanged = false;
+        vao.enableAttrib(4, 2, GL_FLOAT, false, VERTEX_SIZE, 2*4 + 2*4 + 4*4 + 1*4);
+    }
+    /**
+     * Write the glyphs of a chunk into its slots. Unused slots
+     * are filled with degenerate quads.
+     */
+    private void putChunk(Chunk ch) {
+        buffer.position(ch.first * GLYPH_SIZE);
+
+        layoutChunk(ch, (chunk, g, x, y, w, h) -> {
+            // 0--2
+            // | /|
+            // |/ |
+            // 1--3
+            //
+            buffer.putFloat(x); buffer.putFloat(y);                   // 0
+            buffer.putFloat(g.u); buffer.putFloat(g.v);
+            buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
+            buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
+            buffer.putFloat(chunk.size);
+            buffer.putFloat(g.layer); buffer.putFloat(chunk.font.uvScale);
+
+            buffer.putFloat(x); buffer.putFloat(y+h);          // 1
+            buffer.putFloat(g.u); buffer.putFloat(g.v2);
+            buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
+            buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
+            buffer.putFloat(chunk.size);
+            buffer.putFloat(g.layer); buffer.putFloat(chunk.font.uvScale);
+
+            buffer.putFloat(x+w); buffer.putFloat(y);          // 2
+            buffer.putFloat(g.u2); buffer.putFloat(g.v);
+            buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
+            buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
+            buffer.putFloat(chunk.size);
+            buffer.putFloat(g.layer); buffer.putFloat(chunk.font.uvScale);
+
+
+
+            buffer.putFloat(x+w); buffer.putFloat(y);          // 2
+            buffer.putFloat(g.u2); buffer.putFloat(g.v);
+            buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
+            buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
+            buffer.putFloat(chunk.size);
+            buffer.putFloat(g.layer); buffer.putFloat(chunk.font.uvScale);
+
+            buffer.putFloat(x); buffer.putFloat(y+h);          // 1
+            buffer.putFloat(g.u); buffer.putFloat(g.v2);
+            buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
+            buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
+            buffer.putFloat(chunk.size);
+            buffer.putFloat(g.layer); buffer.putFloat(chunk.font.uvScale);
+
+            buffer.putFloat(x+w); buffer.putFloat(y+h); // 3
+            buffer.putFloat(g.u2); buffer.putFloat(g.v2);
+            buffer.putFloat(chunk.colour.r); buffer.putFloat(chunk.colour.g);
+            buffer.putFloat(chunk.colour.b); buffer.putFloat(chunk.colour.a);
+            buffer.putFloat(chunk.size);
+            buffer.putFloat(g.layer); buffer.putFloat(chunk.font.uvScale);
+        });
+
+        int unused = (ch.capacity - ch.text.length()) * GLYPH_SIZE;
+        if(unused > 0) {
+            memSet(memAddress(buffer), 0, unused);
+            buffer.position(buffer.position() + unused);
+        }
+    }
+    /**
+     * Assign contiguous slots to chunks starting at index.
+     * Each chunk's capacity is trimmed to the length of its text.
+     */
+    private void compact(int index) {
+        int slot = 0;
+        if(index > 0) {
+            var prev = chunks.get(index-1);
+            slot = prev.first + prev.capacity;
+        }
+        for(int i=index; i<chunks.size(); i++) {
+            var ch      = chunks.get(i);
+            ch.first    = slot;
+            ch.capacity = ch.text.length();
+            slot       += ch.capacity;
+        }
+        numSlots = slot;
+        dirty.mark(index, chunks.size());
+    }
+    /** Calculate the position of every glyph in every chunk. */
+    private void layout(GlyphWriter writer) {
+        for(var chunk : chunks) {
+            layoutChunk(chunk, writer);
+        }
+    }
+    private void layoutChunk(Chunk chunk, GlyphWriter writer) {
+        float X  = (float)chunk.pos.getX();
+        float Y  = (float)chunk.pos.getY();
+        int i    = 0;
+
+        for(var c : chunk.text.toCharArray()) {
+
+            var g       = chunk.font.page.getChar(c);
+            float ratio = (chunk.size / (float)chunk.font.size);
+            float x     = X + g.xoffset * ratio;
+            float y     = Y + g.yoffset * ratio;
+            float w     = g.width * ratio;
+            float h     = g.height * ratio;
+
+            writer.write(chunk, g, x, y, w, h);
+
+            int kerning = 0;
+            if(i+1<chunk.text.length()) {
+                kerning = chunk.font.page.getKerning(c, chunk.text.charAt(i + 1));
+            }
+
+            X += (g.xadvance + kerning) * ratio;
+            i++;
+        }
     }
     private static final String VS = "#version 330 core\n" +
         "    layout(location = 0) in vec2 pos;" +
         "    layout(location = 1) in vec2 uv;" +
         "    layout(location = 2) in vec4 colour;" +
         "    layout(location = 3) in float size;" +
+        "    layout(location = 4) in vec2 page;" +
         "" +
         "    uniform mat4 VP;" +
         "" +
@@ -272,13 +462,17 @@ final public class TextRenderer {
         "        vec2 uv;" +
         "        vec4 colour;" +
         "        float size;" +
+        "        flat float layer;" +
+        "        flat float uvScale;" +
         "    } vs_out;" +
         "" +
         "    void main() {" +
-        "        gl_Position   = VP * vec4(pos,0,1);" +
-        "        vs_out.uv     = uv;" +
-        "        vs_out.colour = colour;" +
-        "        vs_out.size   = size;" +
+        "        gl_Position    = VP * vec4(pos,0,1);" +
+        "        vs_out.uv      = uv;" +
+        "        vs_out.colour  = colour;" +
+        "        vs_out.size    = size;" +
+        "        vs_out.layer   = page.x;" +
+        "        vs_out.uvScale = page.y;" +
         "    }" +
         "";
     private static final String FS = "#version 330 core\n" +
@@ -287,14 +481,16 @@ final public class TextRenderer {
         "        vec2 uv;" +
         "        vec4 colour;" +
         "        float size;" +
+        "        flat float layer;" +
+        "        flat float uvScale;" +
         "    } fs_in;" +
         "" +
         "    out vec4 color;" +
-        "    uniform sampler2D SAMPLER0;" +
+        "    uniform sampler2DArray SAMPLER0;" +
         "" +
         "    void main() {" +
         "        float smoothing = (1.0 / (0.25*fs_in.size));" +
-        "        float distance  = texture(SAMPLER0, fs_in.uv).a;" +
+        "        float distance  = texture(SAMPLER0, vec3(fs_in.uv, fs_in.layer)).a;" +
         "        float alpha     = smoothstep(0.5 - smoothing, 0.5 + smoothing, distance);" +
 	    "        color           = vec4(fs_in.colour.rgb, fs_in.colour.a * alpha);" +
         "    }";
@@ -304,17 +500,19 @@ final public class TextRenderer {
         "        vec2 uv;" +
         "        vec4 colour;" +
         "        float size;" +
+        "        flat float layer;" +
+        "        flat float uvScale;" +
         "    } fs_in;" +
         "" +
         "    out vec4 color;" +
-        "    uniform sampler2D SAMPLER0;" +
+        "    uniform sampler2DArray SAMPLER0;" +
         "    uniform vec4 dsColour = vec4(0,0,0, 0.75);" +
         "    uniform vec2 dsOffset = vec2(-0.0025, 0.0025);" +
         "" +
         "    void main() {" +
-        "        vec2 offset     = dsOffset;" +
+        "        vec2 offset     = dsOffset * fs_in.uvScale;" +
         "        float smoothing = (1.0 / (0.25*fs_in.size)) * fs_in.size / 12;" +
-        "        float distance  = texture(SAMPLER0, fs_in.uv - offset).a;" +
+        "        float distance  = texture(SAMPLER0, vec3(fs_in.uv - offset, fs_in.layer)).a;" +
         "        float alpha     = smoothstep(0.5 - smoothing, 0.5 + smoothing, distance);" +
         "        vec4 col        = dsColour;" +
         "        color           = vec4(col.rgb, col.a * alpha);" +
@@ -1,6 +1,9 @@
 package juice.graphics;
 
+import juice.Resources;
 import juice.Util;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryStack;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
@@ -8,66 +11,298 @@ import java.awt.color.ColorSpace;
 import java.awt.image.*;
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import static juice.Util.exceptionContext;
+import static org.lwjgl.BufferUtils.createByteBuffer;
+import static org.lwjgl.glfw.GLFW.glfwPostEmptyEvent;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.stb.STBImage.*;
 
 final public class Texture {
     public String name;
     public int width, height;
     public int id;
     public int format;
+    private boolean loaded, evicted;
+    private long bytes;
+    private int refCount;
 
     public static Attribs standardAttribs = new Attribs(GL_CLAMP_TO_EDGE, GL_LINEAR);
 
+    /**
+     * STB decodes straight into an off-heap buffer at the image's own size.
+     * AWT is the original ImageIO path which pads to a power of two.
+     */
+    public enum Decoder { STB, AWT }
+
+    public static Attribs mipmapAttribs   = new Attribs(GL_CLAMP_TO_EDGE, GL_LINEAR, true);
+
     public static class Attribs {
         public int clamp;
         public int filter;
+        /** Generate mipmaps unless the file already contains them */
+        public boolean mipmaps;
 
-        public Attribs(int clamp, int filter) { this.clamp = clamp; this.filter = filter; }
+        public Attribs(int clamp, int filter) { this(clamp, filter, false); }
+        public Attribs(int clamp, int filter, boolean mipmaps) { this.clamp = clamp; this.filter = filter; this.mipmaps = mipmaps; }
 
         @Override public int hashCode() {
-            return (Integer.hashCode(clamp) << 16) ^ (Integer.hashCode(filter));
+            return (Integer.hashCode(clamp) << 16) ^ (Integer.hashCode(filter)) ^ (mipmaps ? 1 << 31 : 0);
         }
         @Override public boolean equals(Object obj) {
             var o = (Attribs)obj;
-            return clamp == o.clamp && filter == o.filter;
+            return clamp == o.clamp && filter == o.filter && mipmaps == o.mipmaps;
         }
     }
 
+    /** Estimated GPU memory used by this texture including mipmaps. */
+    public long getBytes() {
+        return bytes;
+    }
+    /** Give up a reference taken by get(). The texture may then be evicted. */
+    public void release() {
+        if(refCount > 0) refCount--;
+        if(refCount == 0) evict();
+    }
+    /** False while an asynchronously loaded texture is still showing its placeholder. */
+    public boolean isLoaded() {
+        return loaded;
+    }
     //====================================================================================
     public static void setDirectory(String directory) {
         Texture.directory = directory + (directory.endsWith("/") ? "" : "/");
     }
+    public static String getDirectory() {
+        return directory;
+    }
+    public static void setDecoder(Decoder d) {
+        Texture.decoder = d;
+    }
+    /** Every texture currently uploaded to the GPU, largest first. */
+    public static List<Texture> getResident() {
+        var list = new ArrayList<>(resident);
+        list.sort((a,b) -> Long.compare(b.bytes, a.bytes));
+        return list;
+    }
+    public static long getResidentBytes() {
+        return residentBytes;
+    }
     public static void destroy() {
-        for(var m : map.values()) {
-            for(var t : m.entrySet()) {
-                //System.out.println("Destroying texture '"+t.getKey()+"'");
-                glDeleteTextures(t.getValue().id);
-            }
+        for(var u : ready) {
+            if(u.pixels != null) free(u.pixels);
+        }
+        ready.clear();
+        pending.clear();
+
+        for(var t : map.values()) {
+            //System.out.println("Destroying texture '"+t.name+"'");
+            if(t.loaded) glDeleteTextures(t.id);
         }
         map.clear();
+        resident.clear();
+        residentBytes = 0;
+
+        if(placeholderId != 0) glDeleteTextures(placeholderId);
+        if(pbo != 0) glDeleteBuffers(pbo);
+        placeholderId = 0;
+        pbo           = 0;
     }
 
     public static Texture get(String filename, Attribs attribs) {
         return get(directory, filename, attribs);
     }
+    /**
+     * Get a texture from the cache, loading it if necessary. Each call adds
+     * a reference which should be given up with release() when the texture
+     * is no longer needed.
+     */
     public static Texture get(String directory, String filename, Attribs attribs) {
         if(!directory.endsWith("/")) directory += "/";
+
+        var key = new Key(directory+filename, attribs);
+        var t   = map.get(key);
+        var u   = t == null ? null : pending.get(t);
+        if(u != null) {
+            // Finish the asynchronous load of the same texture now rather than loading it twice
+            hits++;
+            exceptionContext(() -> u.future.get());
+            ready.remove(u);
+            finishUpload(u);
+        } else if(t == null) {
+            misses++;
+            t     = load(directory, filename, attribs);
+            map.put(key, t);
+        } else if(t.evicted) {
+            reloads++;
+            upload(t, decode(directory, filename, decoder), attribs, false);
+        } else {
+            hits++;
+        }
+        t.refCount++;
+        evict();
+        return t;
+    }
+    public static Texture getAsync(String filename, Attribs attribs, Consumer<Texture> onLoaded) {
+        return getAsync(directory, filename, attribs, onLoaded);
+    }
+    /**
+     * Decode the image on a worker thread and return immediately.
+     * The returned texture shows a transparent 1x1 placeholder until
+     * processUploads() uploads it, after which onLoaded is called on
+     * the render thread. onLoaded may be null.
+     */
+    public static Texture getAsync(String directory, String filename, Attribs attribs, Consumer<Texture> onLoaded) {
+        if(!directory.endsWith("/")) directory += "/";
         final String dir = directory;
 
-        var m = map.computeIfAbsent(attribs, k -> new HashMap<>());
+        var key = new Key(dir+filename, attribs);
+        var t   = map.get(key);
+        // An evicted texture that is already being reloaded is also waited on
+        if(t != null && (!t.evicted || pending.containsKey(t))) {
+            hits++;
+            t.refCount++;
+            var u = pending.get(t);
+            if(u != null) {
+                if(onLoaded != null) u.callbacks.add(onLoaded);
+            } else if(onLoaded != null) {
+                onLoaded.accept(t);
+            }
+            return t;
+        }
 
-        return m.computeIfAbsent(dir+filename, k-> load(dir, filename, attribs));
+        if(t == null) {
+            misses++;
+            t        = new Texture();
+            t.name   = filename;
+            t.width  = 1;
+            t.height = 1;
+            t.format = GL_RGBA;
+            map.put(key, t);
+        } else {
+            reloads++;
+        }
+        t.id = placeholder();
+        t.refCount++;
+
+        var u     = new Upload();
+        u.texture = t;
+        u.attribs = attribs;
+        if(onLoaded != null) u.callbacks.add(onLoaded);
+        pending.put(t, u);
+
+        u.future = Resources.workers().submit(() -> {
+            try{
+                u.pixels = decode(dir, filename, decoder);
+            }catch(Throwable e) {
+                u.error = e;
+            }
+            ready.add(u);
+            glfwPostEmptyEvent();   // wake the render loop if it is idle
+            return null;
+        });
+        return t;
+    }
+    /**
+     * Limit the GPU memory used by cached textures. Unreferenced textures
+     * are evicted, least recently used first, when the budget is exceeded.
+     */
+    public static void setCacheBudget(long bytes) {
+        Texture.budget = bytes;
+        evict();
+    }
+    /**
+     * If true (the default) an evicted texture keeps its handle and is
+     * reloaded from disk into the same Texture when it is next requested.
+     * Otherwise it is dropped from the cache.
+     */
+    public static void setReloadEvicted(boolean flag) {
+        Texture.reloadEvicted = flag;
+    }
+    public static long getCacheHits() { return hits; }
+    public static long getCacheMisses() { return misses; }
+    public static long getCacheEvictions() { return evictions; }
+    public static long getCacheReloads() { return reloads; }
+    /**
+     * Upload decoded textures to the GPU. Call once per frame on the render
+     * thread. Stops once budgetNsecs has been used but always uploads at
+     * least one texture so that loading makes progress.
+     * @return The number of textures uploaded.
+     */
+    public static int processUploads(long budgetNsecs) {
+        long start = System.nanoTime();
+        int count  = 0;
+        Upload u;
+        while((u = ready.poll()) != null) {
+            finishUpload(u);
+            count++;
+            if(System.nanoTime()-start >= budgetNsecs) break;
+        }
+        return count;
+    }
+    /** Number of asynchronous loads that have not been uploaded yet. */
+    public static int getNumPending() {
+        return pending.size();
     }
 
     //====================================================================================
     private static String directory = "./";
-    private static Map<Attribs, Map<String,Texture>> map = new HashMap<>();
+    private static volatile Decoder decoder = Decoder.STB;  // read by the worker threads
+    private static Set<Texture> resident = new LinkedHashSet<>();
+    private static long residentBytes;
+    private static long budget           = Long.MAX_VALUE;
+    private static boolean reloadEvicted = true;
+    private static long hits, misses, evictions, reloads;
+    /** Access ordered so iteration visits the least recently used first */
+    private static Map<Key,Texture> map  = new LinkedHashMap<>(64, 0.75f, true);
+    private static Map<Texture,Upload> pending            = new HashMap<>();
+    private static ConcurrentLinkedQueue<Upload> ready    = new ConcurrentLinkedQueue<>();
+    private static int placeholderId, pbo;
+
+    private static final class Key {
+        final String path;
+        final Attribs attribs;
+
+        Key(String path, Attribs attribs) { this.path = path; this.attribs = attribs; }
+
+        @Override public int hashCode() {
+            return path.hashCode() * 31 + attribs.hashCode();
+        }
+        @Override public boolean equals(Object obj) {
+            var o = (Key)obj;
+            return path.equals(o.path) && attribs.equals(o.attribs);
+        }
+    }
+    static final class Decoded {
+        int width, height, format;
+        ByteBuffer data;
+        Decoder decoder;
+        TextureContainer container;     // precompressed DDS/KTX
+    }
+    private static final class Upload {
+        Texture texture;
+        Attribs attribs;
+        List<Consumer<Texture>> callbacks = new ArrayList<>();
+        Future<?> future;
+        volatile Decoded pixels;
+        volatile Throwable error;
+    }
     private static final ColorModel RGBAColorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[] {8,8,8,8},
                                                                              true,
                                                                              false,
@@ -80,61 +315,316 @@ final public class Texture {
                                                                             ComponentColorModel.OPAQUE,
                                                                             DataBuffer.TYPE_BYTE);
 
+    /** Create an empty RGBA8 texture. It is not cached so the caller must delete it. */
+    static Texture create(String name, int width, int height, Attribs attribs) {
+        var t    = new Texture();
+        t.name   = name;
+        t.width  = width;
+        t.height = height;
+        t.format = GL_RGBA;
+        t.id     = glGenTextures();
+
+        glBindTexture(GL_TEXTURE_2D, t.id);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, attribs.clamp);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, attribs.clamp);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, attribs.filter);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, attribs.filter);
+
+        // Start transparent so the padding between images does not bleed
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, createByteBuffer(width*height*4));
+
+        t.bytes  = (long)width*height*4;
+        t.loaded = true;
+        addResident(t);
+        return t;
+    }
+    /** Delete a texture made by create(). */
+    static void delete(Texture t) {
+        glDeleteTextures(t.id);
+        removeResident(t);
+    }
+    /** Decoded RGBA8 pixels at the original image size. */
+    static final class Pixels {
+        int width, height;
+        ByteBuffer data;
+    }
+    static Pixels readPixels(String directory, String filename) {
+        if(decoder == Decoder.STB) {
+            var d    = decodeSTB(directory, filename, false);
+            var p    = new Pixels();
+            p.width  = d.width;
+            p.height = d.height;
+            // Callers keep the pixels so copy them out of stb's memory
+            p.data   = createByteBuffer(d.data.remaining());
+            p.data.put(d.data.duplicate()).flip();
+            free(d);
+            return p;
+        }
+        var src = exceptionContext(() ->
+            ImageIO.read(new File(directory + filename))
+        );
+
+        var p    = new Pixels();
+        p.width  = src.getWidth();
+        p.height = src.getHeight();
+
+        var raster   = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,p.width,p.height,4,null);
+        var texImage = new BufferedImage(RGBAColorModel,raster,false,new Hashtable<>());
+        var g        = texImage.getGraphics();
+        g.setColor(new Color(0f,0f,0f,0f));
+        g.fillRect(0,0,p.width,p.height);
+        g.drawImage(src,0,0,null);
+
+        p.data = Util.toBuffer(((DataBufferByte)texImage.getData().getDataBuffer()).getData());
+        return p;
+    }
     private static Texture load(String directory, String filename, Attribs attribs) {
-        var image = new Texture();
+        var image  = new Texture();
         image.name = filename;
+        upload(image, decode(directory, filename, decoder), attribs, false);
+        return image;
+    }
+    /** CPU side of loading. Safe to call from any thread. */
+    static Decoded decode(String directory, String filename, Decoder decoder) {
+        if(TextureContainer.isContainer(filename)) {
+            var d       = new Decoded();
+            d.container = TextureContainer.read(directory + filename);
+            d.width     = d.container.width;
+            d.height    = d.container.height;
+            d.format    = GL_RGBA;
+            return d;
+        }
+        return decoder == Decoder.STB ? decodeSTB(directory, filename, true) : decodeAWT(directory, filename);
+    }
+    /**
+     * Decode straight into an off-heap buffer at the image's own size.
+     * GL 3.3 supports non power of two textures so no padding is needed.
+     * The buffer must be released with free().
+     */
+    private static Decoded decodeSTB(String directory, String filename, boolean allowRGB) {
+        try(var stack = MemoryStack.stackPush()) {
+            var w    = stack.mallocInt(1);
+            var h    = stack.mallocInt(1);
+            var comp = stack.mallocInt(1);
+
+            // Keep RGB images as 3 channels rather than expanding them to RGBA
+            int channels = 4;
+            if(allowRGB && stbi_info(directory + filename, w, h, comp) && comp.get(0) == 3) channels = 3;
+
+            var data = stbi_load(directory + filename, w, h, comp, channels);
+            if(data == null) {
+                throw new RuntimeException("Unable to load "+directory+filename+": "+stbi_failure_reason());
+            }
 
+            var d     = new Decoded();
+            d.width   = w.get(0);
+            d.height  = h.get(0);
+            d.format  = channels == 3 ? GL_RGB : GL_RGBA;
+            d.data    = data;
+            d.decoder = Decoder.STB;
+            return d;
+        }
+    }
+    /** The original decoder. Pads to a power of two and copies through AWT. */
+    private static Decoded decodeAWT(String directory, String filename) {
         var src = exceptionContext(() ->
             ImageIO.read(new File(directory + filename))
         );
 
+        var d     = new Decoded();
+        d.decoder = Decoder.AWT;
         WritableRaster raster;
         BufferedImage texImage;
-        image.width  = 2;
-        image.height = 2;
+        d.width  = 2;
+        d.height = 2;
 
         // Make the texture size a power of 2
-        while(image.width < src.getWidth()) { image.width *= 2; }
-        while(image.height < src.getHeight()) { image.height *= 2; }
+        while(d.width < src.getWidth()) { d.width *= 2; }
+        while(d.height < src.getHeight()) { d.height *= 2; }
 
         if(src.getColorModel().hasAlpha()) {
-            image.format = GL_RGBA;
-            raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,image.width,image.height,4,null);
+            d.format = GL_RGBA;
+            raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,d.width,d.height,4,null);
             texImage = new BufferedImage(RGBAColorModel,raster,false,new Hashtable());
         } else {
-            image.format = GL_RGB;
-            raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,image.width,image.height,3,null);
+            d.format = GL_RGB;
+            raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,d.width,d.height,3,null);
             texImage = new BufferedImage(RGBColorModel,raster,false,new Hashtable());
         }
 
         // copy the source image into the produced image
         var g = texImage.getGraphics();
         g.setColor(new Color(0f,0f,0f,0f));
-        g.fillRect(0,0,image.width,image.height);
+        g.fillRect(0,0,d.width,d.height);
         g.drawImage(src,0,0,null);
+        g.dispose();
 
-
-        byte[] bytes  = ((DataBufferByte)texImage.getData().getDataBuffer()).getData();
-        ByteBuffer bb = Util.toBuffer(bytes);
-
-        // Upload the texture to the GPU
-        image.id = glGenTextures();
+        // Read the raster directly. getData() would make another copy
+        byte[] bytes = ((DataBufferByte)raster.getDataBuffer()).getData();
+        d.data       = Util.toBuffer(bytes);
+        return d;
+    }
+    /**
+     * GPU side of loading. Must be called on the render thread.
+     * If usePbo is true the pixels are staged through a pixel unpack
+     * buffer so glTexImage2D can return before the transfer completes.
+     */
+    private static void upload(Texture image, Decoded d, Attribs attribs, boolean usePbo) {
+        image.width  = d.width;
+        image.height = d.height;
+        image.format = d.format;
+        if(image.loaded) {
+            // Never leak the previous id or count it twice
+            glDeleteTextures(image.id);
+            removeResident(image);
+        }
+        image.id     = glGenTextures();
 
         glBindTexture(GL_TEXTURE_2D, image.id);
 
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, attribs.clamp);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, attribs.clamp);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, attribs.filter);
-        if(false) {
-            // has mipmaps
-            // todo - handle mipmaps
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        if(attribs.mipmaps) {
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER,
+                            attribs.filter == GL_NEAREST ? GL_NEAREST_MIPMAP_NEAREST : GL_LINEAR_MIPMAP_LINEAR);
         } else {
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, attribs.filter);
         }
 
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, image.width, image.height, 0, image.format, GL_UNSIGNED_BYTE, bb);
+        if(d.container != null) {
+            uploadContainer(image, d.container, attribs);
+            image.loaded  = true;
+            image.evicted = false;
+            addResident(image);
+            return;
+        }
 
-        return image;
+        int internalFormat = d.format == GL_RGB ? GL_RGB8 : GL_RGBA8;
+        int bpp            = d.format == GL_RGB ? 3 : 4;
+        glPixelStorei(GL_UNPACK_ALIGNMENT, bpp == 3 ? 1 : 4);
+
+        if(usePbo) {
+            int size = d.data.remaining();
+            if(pbo == 0) pbo = glGenBuffers();
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbo);
+            // Orphan the previous contents so this never waits for an earlier transfer
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, size, GL_STREAM_DRAW);
+            var mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, size, GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+            mapped.put(d.data.duplicate());
+            glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+
+            glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, image.width, image.height, 0, image.format, GL_UNSIGNED_BYTE, 0L);
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        } else {
+            glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, image.width, image.height, 0, image.format, GL_UNSIGNED_BYTE, d.data);
+        }
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        if(attribs.mipmaps) glGenerateMipmap(GL_TEXTURE_2D);
+
+        free(d);
+        image.bytes   = mipChainBytes(image.width, image.height, bpp, attribs.mipmaps);
+        image.loaded  = true;
+        image.evicted = false;
+        addResident(image);
+    }
+    private static void addResident(Texture t) {
+        if(resident.add(t)) residentBytes += t.bytes;
+    }
+    private static void removeResident(Texture t) {
+        if(resident.remove(t)) residentBytes -= t.bytes;
+    }
+    /** Delete unreferenced textures, least recently used first, until within budget. */
+    private static void evict() {
+        if(residentBytes <= budget) return;
+
+        var it = map.values().iterator();
+        while(it.hasNext() && residentBytes > budget) {
+            var t = it.next();
+            if(t.refCount > 0 || !t.loaded) continue;
+
+            glDeleteTextures(t.id);
+            removeResident(t);
+            t.loaded  = false;
+            t.evicted = true;
+            t.id      = placeholder();
+            evictions++;
+
+            if(!reloadEvicted) it.remove();
+        }
+    }
+    /**
+     * Upload every level of a precompressed texture. S3TC data is
+     * decompressed to RGBA8 if the driver does not support it.
+     */
+    private static void uploadContainer(Texture image, TextureContainer c, Attribs attribs) {
+        boolean supported = !c.isS3TC() || GL.getCapabilities().GL_EXT_texture_compression_s3tc;
+        int numLevels     = c.levels.length;
+
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, numLevels-1);
+
+        image.bytes = 0;
+        for(int i=0; i<numLevels; i++) {
+            int w = c.levelWidth(i);
+            int h = c.levelHeight(i);
+            if(c.compressed && supported) {
+                glCompressedTexImage2D(GL_TEXTURE_2D, i, c.internalFormat, w, h, 0, c.levels[i]);
+                image.bytes += c.levels[i].remaining();
+            } else {
+                var pixels = c.compressed ? c.decompress(i) : c.levels[i];
+                glTexImage2D(GL_TEXTURE_2D, i, GL_RGBA8, w, h, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+                image.bytes += (long)w*h*4;
+            }
+        }
+
+        // Mipmaps can only be generated for uncompressed storage
+        if(attribs.mipmaps && numLevels == 1) {
+            if(c.compressed && supported) {
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, attribs.filter);
+            } else {
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 1000);
+                glGenerateMipmap(GL_TEXTURE_2D);
+                image.bytes = mipChainBytes(c.width, c.height, 4, true);
+            }
+        } else if(!attribs.mipmaps && numLevels > 1) {
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        }
+    }
+    private static long mipChainBytes(int w, int h, int bpp, boolean mipmaps) {
+        long total = (long)w*h*bpp;
+        while(mipmaps && (w > 1 || h > 1)) {
+            w = Math.max(1, w/2);
+            h = Math.max(1, h/2);
+            total += (long)w*h*bpp;
+        }
+        return total;
+    }
+    /** Release the pixels of a decoded image once they have been uploaded. */
+    static void free(Decoded d) {
+        // stbi_image_free frees the address at the buffer position so it must be at 0
+        if(d.decoder == Decoder.STB && d.data != null) stbi_image_free(d.data.rewind());
+        d.data = null;
+    }
+    private static void finishUpload(Upload u) {
+        if(u.error != null) {
+            System.err.println("Unable to load texture '"+u.texture.name+"': "+u.error);
+        } else {
+            upload(u.texture, u.pixels, u.attribs, true);
+            for(var c : u.callbacks) {
+                c.accept(u.texture);
+            }
+        }
+        pending.remove(u.texture);
+        evict();
+    }
+    private static int placeholder() {
+        if(placeholderId == 0) {
+            placeholderId = glGenTextures();
+            glBindTexture(GL_TEXTURE_2D, placeholderId);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, 1, 1, 0, GL_RGBA, GL_UNSIGNED_BYTE, createByteBuffer(4));
+        }
+        return placeholderId;
     }
 }
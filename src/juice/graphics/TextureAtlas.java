@@ -0,0 +1,147 @@
+package juice.graphics;
+
+import juice.types.Int2;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Packs many small images into a few shared textures so that quads
+ * using any of them can be drawn with a single texture bound.
+ *
+ * Images are packed as they are added. A new page texture is created
+ * when an image does not fit in any existing page.
+ *
+ *  var icons = new TextureAtlas("icons", 1024, 1024, Texture.standardAttribs)
+ *      .add("bishop", "bishop-64.png");
+ *  sprite.setTexture(icons.get("bishop"));
+ *
+ * An atlas can also be loaded from a prebuilt sheet and a manifest:
+ *
+ *  sheet file="icons.png"
+ *  region name=bishop x=0 y=0 width=64 height=64
+ */
+final public class TextureAtlas {
+    private static final int PADDING = 2;
+
+    private String name;
+    private int width, height;
+    private Texture.Attribs attribs;
+    private List<Texture> pages       = new ArrayList<>();
+    private List<RectPacker> packers  = new ArrayList<>();
+    private Map<String,TextureRegion> regions = new HashMap<>();
+    private int numSharedPages;     // loaded sheets are owned by the Texture cache
+
+    public TextureAtlas(String name, int width, int height, Texture.Attribs attribs) {
+        this.name    = name;
+        this.width   = width;
+        this.height  = height;
+        this.attribs = attribs;
+    }
+    public void destroy() {
+        // Give the loaded sheets back to the cache so they can be evicted
+        for(int i=0; i<numSharedPages; i++) {
+            pages.get(i).release();
+        }
+        for(int i=numSharedPages; i<pages.size(); i++) {
+            Texture.delete(pages.get(i));
+        }
+        pages.clear();
+        packers.clear();
+        regions.clear();
+    }
+    public int getNumPages() {
+        return pages.size();
+    }
+    public Texture getPage(int index) {
+        return pages.get(index);
+    }
+    public TextureRegion get(String name) {
+        var r = regions.get(name);
+        if(r==null) throw new RuntimeException("Texture atlas '"+this.name+"' has no region '"+name+"'");
+        return r;
+    }
+    /** Load an image from the Texture directory and pack it into the atlas. */
+    public TextureAtlas add(String name, String filename) {
+        return add(name, Texture.getDirectory(), filename);
+    }
+    public TextureAtlas add(String name, String directory, String filename) {
+        if(!directory.endsWith("/")) directory += "/";
+        var pixels = Texture.readPixels(directory, filename);
+
+        if(pixels.width > width || pixels.height > height) {
+            throw new RuntimeException("Image "+filename+" does not fit in texture atlas '"+this.name+"'");
+        }
+
+        int page = 0;
+        Int2 pos = null;
+        for(; page<packers.size() && pos==null; page++) {
+            pos = packers.get(page).pack(pixels.width+PADDING, pixels.height+PADDING);
+        }
+        if(pos == null) {
+            // The padding after the last image in a row or column can hang off the edge
+            var packer = new RectPacker(width+PADDING, height+PADDING);
+            packers.add(packer);
+            pages.add(Texture.create(this.name+"#"+pages.size(), width, height, attribs));
+            pos  = packer.pack(pixels.width+PADDING, pixels.height+PADDING);
+            page = packers.size();
+        }
+
+        var t = pages.get(page-1);
+        glBindTexture(GL_TEXTURE_2D, t.id);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, pos.getX(), pos.getY(), pixels.width, pixels.height, GL_RGBA, GL_UNSIGNED_BYTE, pixels.data);
+
+        regions.put(name, new TextureRegion(t, name, pos.getX(), pos.getY(), pixels.width, pixels.height));
+        return this;
+    }
+    //====================================================================================
+    /**
+     * Load a prebuilt sheet. The manifest lists the sheet image and
+     * the name and pixel rectangle of every region within it.
+     */
+    public static TextureAtlas load(String directory, String manifest, Texture.Attribs attribs) {
+        if(!directory.endsWith("/")) directory += "/";
+
+        TextureAtlas atlas = null;
+        try(var br = new BufferedReader(new FileReader(directory+manifest))) {
+            String line;
+            while((line=br.readLine())!=null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) continue;
+
+                var map = new HashMap<String,String>();
+                for(var it : line.split("\\s+")) {
+                    var pair = it.split("=");
+                    if(pair.length==2) map.put(pair[0], pair[1].replace("\"", ""));
+                }
+
+                if(line.startsWith("sheet")) {
+                    var t = Texture.get(directory, map.get("file"), attribs);
+                    atlas = new TextureAtlas(manifest, t.width, t.height, attribs);
+                    atlas.pages.add(t);
+                    atlas.numSharedPages = 1;
+                } else if(line.startsWith("region")) {
+                    if(atlas==null) throw new RuntimeException("Manifest "+manifest+" has a region before its sheet");
+                    var name = map.get("name");
+                    atlas.regions.put(name, new TextureRegion(atlas.pages.get(0), name,
+                                                              Integer.valueOf(map.get("x")),
+                                                              Integer.valueOf(map.get("y")),
+                                                              Integer.valueOf(map.get("width")),
+                                                              Integer.valueOf(map.get("height"))));
+                }
+            }
+        }catch(RuntimeException e) {
+            throw e;
+        }catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        if(atlas==null) throw new RuntimeException("Manifest "+manifest+" has no sheet");
+        return atlas;
+    }
+}
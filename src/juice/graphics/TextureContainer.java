@@ -0,0 +1,248 @@
+package juice.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static juice.Util.exceptionContext;
+import static org.lwjgl.BufferUtils.createByteBuffer;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RED_RGTC1;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RG_RGTC2;
+
+/**
+ * Reads precompressed textures from DDS and KTX (version 1) files.
+ *
+ * Supported formats are BC1-BC3 (S3TC/DXT), which need the
+ * EXT_texture_compression_s3tc extension, and BC4-BC5 (RGTC), which
+ * are core in GL 3.0. KTX files may also hold uncompressed RGBA8.
+ * S3TC data can be decompressed to RGBA8 for drivers without the
+ * extension.
+ */
+final class TextureContainer {
+    int width, height;
+    int internalFormat;     // the compressed format or GL_RGBA8
+    boolean compressed;
+    ByteBuffer[] levels;
+
+    static boolean isContainer(String filename) {
+        var f = filename.toLowerCase();
+        return f.endsWith(".dds") || f.endsWith(".ktx");
+    }
+    static TextureContainer read(String path) {
+        var bytes = exceptionContext(() -> Files.readAllBytes(Paths.get(path)));
+        var buf   = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        return path.toLowerCase().endsWith(".dds") ? readDDS(path, buf) : readKTX(path, buf);
+    }
+    boolean isS3TC() {
+        return internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT1_EXT ||
+               internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT3_EXT ||
+               internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+    }
+    int levelWidth(int level) {
+        return Math.max(1, width >> level);
+    }
+    int levelHeight(int level) {
+        return Math.max(1, height >> level);
+    }
+    long getBytes() {
+        long total = 0;
+        for(var l : levels) total += l.remaining();
+        return total;
+    }
+    /** Decode one S3TC level to RGBA8. */
+    ByteBuffer decompress(int level) {
+        int w      = levelWidth(level);
+        int h      = levelHeight(level);
+        var src    = levels[level].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        var dest   = createByteBuffer(w*h*4);
+        var block  = new int[16];
+        var alpha  = new int[16];
+
+        for(int by=0; by<h; by+=4) {
+            for(int bx=0; bx<w; bx+=4) {
+
+                if(internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT1_EXT) {
+                    decodeColours(src, block, true);
+                    for(int i=0; i<16; i++) alpha[i] = block[i] >>> 24;
+                } else if(internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT3_EXT) {
+                    long bits = src.getLong();
+                    for(int i=0; i<16; i++) alpha[i] = (int)((bits >>> (i*4)) & 0xf) * 17;
+                    decodeColours(src, block, false);
+                } else {
+                    decodeAlpha(src, alpha);
+                    decodeColours(src, block, false);
+                }
+
+                for(int y=0; y<4 && by+y<h; y++) {
+                    for(int x=0; x<4 && bx+x<w; x++) {
+                        int c = block[y*4+x];
+                        int p = ((by+y)*w + bx+x) * 4;
+                        dest.put(p,   (byte)(c & 0xff));
+                        dest.put(p+1, (byte)((c >>> 8) & 0xff));
+                        dest.put(p+2, (byte)((c >>> 16) & 0xff));
+                        dest.put(p+3, (byte)alpha[y*4+x]);
+                    }
+                }
+            }
+        }
+        return dest;
+    }
+    //====================================================================================
+    private static final int DDS_MAGIC = 0x20534444;  // "DDS "
+
+    private static TextureContainer readDDS(String path, ByteBuffer buf) {
+        if(buf.getInt(0) != DDS_MAGIC) throw new RuntimeException(path+" is not a DDS file");
+
+        var t      = new TextureContainer();
+        t.height   = buf.getInt(12);
+        t.width    = buf.getInt(16);
+        int mips   = Math.max(1, buf.getInt(28));
+        int fourCC = buf.getInt(84);
+        int offset = 128;
+
+        switch(fourCC(fourCC)) {
+            case "DXT1": t.internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT1_EXT; break;
+            case "DXT3": t.internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT3_EXT; break;
+            case "DXT5": t.internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT5_EXT; break;
+            case "ATI1":
+            case "BC4U": t.internalFormat = GL_COMPRESSED_RED_RGTC1; break;
+            case "ATI2":
+            case "BC5U": t.internalFormat = GL_COMPRESSED_RG_RGTC2; break;
+            case "DX10":
+                offset = 148;
+                switch(buf.getInt(128)) {   // DXGI_FORMAT
+                    case 71: t.internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT1_EXT; break;
+                    case 74: t.internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT3_EXT; break;
+                    case 77: t.internalFormat = GL_COMPRESSED_RGBA_S3TC_DXT5_EXT; break;
+                    case 80: t.internalFormat = GL_COMPRESSED_RED_RGTC1; break;
+                    case 83: t.internalFormat = GL_COMPRESSED_RG_RGTC2; break;
+                    default: throw new RuntimeException(path+" has unsupported DXGI format "+buf.getInt(128));
+                }
+                break;
+            default: throw new RuntimeException(path+" has unsupported DDS format '"+fourCC(fourCC)+"'");
+        }
+        t.compressed = true;
+
+        t.levels = new ByteBuffer[mips];
+        for(int i=0; i<mips; i++) {
+            int size    = t.blockBytes(i);
+            t.levels[i] = copy(buf, offset, size);
+            offset     += size;
+        }
+        return t;
+    }
+    private static TextureContainer readKTX(String path, ByteBuffer buf) {
+        byte[] id = {(byte)0xAB,'K','T','X',' ','1','1',(byte)0xBB,'\r','\n',0x1A,'\n'};
+        for(int i=0; i<id.length; i++) {
+            if(buf.get(i) != id[i]) throw new RuntimeException(path+" is not a KTX 1 file");
+        }
+        if(buf.getInt(12) != 0x04030201) throw new RuntimeException(path+" is big endian");
+
+        var t        = new TextureContainer();
+        int glType   = buf.getInt(16);
+        int glFormat = buf.getInt(24);
+        t.internalFormat = buf.getInt(28);
+        t.width      = buf.getInt(36);
+        t.height     = buf.getInt(40);
+        int mips     = Math.max(1, buf.getInt(56));
+        int offset   = 64 + buf.getInt(60);
+
+        if(glType == 0) {
+            t.compressed = true;
+            if(!t.isS3TC() && t.internalFormat != GL_COMPRESSED_RED_RGTC1 && t.internalFormat != GL_COMPRESSED_RG_RGTC2) {
+                throw new RuntimeException(path+" has unsupported compressed format 0x"+Integer.toHexString(t.internalFormat));
+            }
+        } else if(glType == GL_UNSIGNED_BYTE && glFormat == GL_RGBA) {
+            t.internalFormat = GL_RGBA8;
+        } else {
+            throw new RuntimeException(path+" has unsupported KTX format 0x"+Integer.toHexString(glFormat));
+        }
+
+        t.levels = new ByteBuffer[mips];
+        for(int i=0; i<mips; i++) {
+            int size    = buf.getInt(offset);
+            t.levels[i] = copy(buf, offset+4, size);
+            offset     += 4 + ((size + 3) & ~3);
+        }
+        return t;
+    }
+    private int blockBytes(int level) {
+        int blockSize = (internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT1_EXT ||
+                         internalFormat == GL_COMPRESSED_RED_RGTC1) ? 8 : 16;
+        return ((levelWidth(level)+3)/4) * ((levelHeight(level)+3)/4) * blockSize;
+    }
+    private static ByteBuffer copy(ByteBuffer src, int offset, int size) {
+        var b = src.duplicate();
+        b.position(offset).limit(offset+size);
+        var dest = createByteBuffer(size);
+        dest.put(b).flip();
+        return dest;
+    }
+    private static String fourCC(int v) {
+        return "" + (char)(v & 0xff) + (char)((v >>> 8) & 0xff) + (char)((v >>> 16) & 0xff) + (char)(v >>> 24);
+    }
+    /** Decode a BC1 colour block into 16 ABGR ints. */
+    private static void decodeColours(ByteBuffer src, int[] out, boolean allowAlpha) {
+        int c0      = src.getShort() & 0xffff;
+        int c1      = src.getShort() & 0xffff;
+        int indices = src.getInt();
+
+        var palette = new int[4];
+        palette[0]  = rgb565(c0);
+        palette[1]  = rgb565(c1);
+        if(c0 > c1 || !allowAlpha) {
+            palette[2] = mix(palette[0], palette[1], 2, 1, 3);
+            palette[3] = mix(palette[0], palette[1], 1, 2, 3);
+        } else {
+            palette[2] = mix(palette[0], palette[1], 1, 1, 2);
+            palette[3] = 0;     // transparent black
+        }
+        for(int i=0; i<16; i++) {
+            out[i] = palette[(indices >>> (i*2)) & 3];
+        }
+    }
+    /** Decode a BC3 alpha block into 16 alpha values. */
+    private static void decodeAlpha(ByteBuffer src, int[] out) {
+        int a0 = src.get() & 0xff;
+        int a1 = src.get() & 0xff;
+        long bits = 0;
+        for(int i=0; i<6; i++) {
+            bits |= (long)(src.get() & 0xff) << (i*8);
+        }
+
+        var a = new int[8];
+        a[0] = a0;
+        a[1] = a1;
+        if(a0 > a1) {
+            for(int i=1; i<7; i++) a[i+1] = ((7-i)*a0 + i*a1) / 7;
+        } else {
+            for(int i=1; i<5; i++) a[i+1] = ((5-i)*a0 + i*a1) / 5;
+            a[6] = 0;
+            a[7] = 255;
+        }
+        for(int i=0; i<16; i++) {
+            out[i] = a[(int)((bits >>> (i*3)) & 7)];
+        }
+    }
+    private static int rgb565(int c) {
+        int r = (c >>> 11) & 31;
+        int g = (c >>> 5) & 63;
+        int b = c & 31;
+        r = (r << 3) | (r >>> 2);
+        g = (g << 2) | (g >>> 4);
+        b = (b << 3) | (b >>> 2);
+        return 0xff000000 | (b << 16) | (g << 8) | r;
+    }
+    private static int mix(int x, int y, int wx, int wy, int div) {
+        int r = ((x & 0xff)*wx + (y & 0xff)*wy) / div;
+        int g = (((x >>> 8) & 0xff)*wx + ((y >>> 8) & 0xff)*wy) / div;
+        int b = (((x >>> 16) & 0xff)*wx + ((y >>> 16) & 0xff)*wy) / div;
+        return 0xff000000 | (b << 16) | (g << 8) | r;
+    }
+}
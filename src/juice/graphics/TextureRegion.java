@@ -0,0 +1,36 @@
+package juice.graphics;
+
+import juice.types.Rect;
+
+/**
+ * A rectangle of pixels within a Texture, usually one image in a TextureAtlas.
+ */
+final public class TextureRegion {
+    public final Texture texture;
+    public final String name;
+    public final int x, y, width, height;
+    public final float u, v, u2, v2;
+
+    /** The whole of texture t. */
+    public TextureRegion(Texture t) {
+        this(t, t.name, 0, 0, t.width, t.height);
+    }
+    public TextureRegion(Texture t, String name, int x, int y, int width, int height) {
+        this.texture = t;
+        this.name    = name;
+        this.x       = x;
+        this.y       = y;
+        this.width   = width;
+        this.height  = height;
+        this.u       = x / (float)t.width;
+        this.v       = y / (float)t.height;
+        this.u2      = (x + width) / (float)t.width;
+        this.v2      = (y + height) / (float)t.height;
+    }
+    public Rect<Float> uvs() {
+        return new Rect<>(u, v, u2-u, v2-v);
+    }
+    @Override public String toString() {
+        return String.format("[TextureRegion %s %d,%d %dx%d]", name, x, y, width, height);
+    }
+}
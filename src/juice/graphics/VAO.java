@@ -3,6 +3,7 @@ package juice.graphics;
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
 public final class VAO {
     private int id;
@@ -26,6 +27,10 @@ public final class VAO {
         glVertexAttribPointer(index, elementSize, elementType, normalise, stride, offset);
         numAttribsEnabled = numAttribsEnabled++;
     }
+    /** Advance the attribute once per divisor instances rather than once per vertex. */
+    public void setDivisor(int index, int divisor) {
+        glVertexAttribDivisor(index, divisor);
+    }
     public void enableAttrib(int index, int elementSize, int elementType, boolean normalise, int stride) {
         enableAttrib(index, elementSize, elementType, normalise, stride, 0);
     }
@@ -2,6 +2,7 @@ package juice.graphics;
 
 import java.nio.ByteBuffer;
 
+import static org.lwjgl.BufferUtils.createByteBuffer;
 import static org.lwjgl.opengl.GL15.*;
 
 public final class VBO {
@@ -22,6 +23,24 @@ public final class VBO {
     public static VBO makeElements(long sizeBytes, int usage) {
         return new VBO(GL_ELEMENT_ARRAY_BUFFER, sizeBytes, usage);
     }
+    /**
+     * A static unit quad for instanced rendering. Each vertex
+     * is a vec2 corner to be drawn as a triangle strip:
+     *
+     * 0--2
+     * | /|
+     * |/ |
+     * 1--3
+     */
+    public static VBO makeUnitQuad() {
+        var buffer = createByteBuffer(4 * 2 * 4);
+        buffer.putFloat(0).putFloat(0)
+              .putFloat(0).putFloat(1)
+              .putFloat(1).putFloat(0)
+              .putFloat(1).putFloat(1)
+              .flip();
+        return makeArray(buffer.remaining(), GL_STATIC_DRAW).addData(buffer);
+    }
     public void destroy() {
         glDeleteBuffers(new int[]{id});
     }
@@ -0,0 +1,62 @@
+package juice.profiler;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size ring of per-frame samples with one writer (the render
+ * thread) and any number of readers on other threads.
+ *
+ * Each sample is a row of long values stored in one flat array. The
+ * writer fills a row and then publishes it by advancing head. Readers
+ * copy the rows below head and then check head again. Any row the writer
+ * may have overwritten while it was being copied is thrown away, so no
+ * locks are needed on either side.
+ */
+final class FrameRing {
+    private final int capacity;
+    private final int width;
+    private final long[] data;
+    private final AtomicLong head = new AtomicLong();
+
+    FrameRing(int capacity, int width) {
+        this.capacity = capacity;
+        this.width    = width;
+        this.data     = new long[capacity * width];
+    }
+    int getCapacity() {
+        return capacity;
+    }
+    /** Writer only. */
+    void write(long[] row) {
+        long h = head.get();
+        System.arraycopy(row, 0, data, (int)(h % capacity) * width, width);
+        head.lazySet(h+1);
+        // lazySet keeps this row's writes before head but not the next row's after it.
+        // Without this a reader could see the next row change before it sees the new head
+        VarHandle.storeStoreFence();
+    }
+    /**
+     * Copy the most recent samples, oldest first.
+     * @return The number of rows copied into dest.
+     */
+    int snapshot(long[][] dest) {
+        long end   = head.get();
+        long start = Math.max(0, end - Math.min(capacity, dest.length));
+
+        for(long i=start; i<end; i++) {
+            System.arraycopy(data, (int)(i % capacity) * width, dest[(int)(i-start)], 0, width);
+        }
+
+        // Rows the writer has started on since we read head may be torn.
+        // The fence stops the copies above being reordered after the read of head
+        VarHandle.acquireFence();
+        long overwritten = head.get() - capacity + 1;
+        int skip = (int)Math.max(0, overwritten - start);
+        if(skip >= end-start) return 0;
+        if(skip > 0) {
+            System.arraycopy(dest, skip, dest, 0, (int)(end-start) - skip);
+        }
+        return (int)(end-start) - skip;
+    }
+}
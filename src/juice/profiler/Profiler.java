@@ -0,0 +1,202 @@
+package juice.profiler;
+
+import juice.components.UIComponent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records where frame time goes.
+ *
+ * The Window loop sets the per-phase CPU times, the GPU time and the
+ * number of draw calls for each frame and then calls endFrame(), which
+ * pushes them into a lock-free ring of the last N frames. Summaries and
+ * the JSON dump read from the ring and can be called from any thread.
+ *
+ * UIComponent.fireUpdate and fireRender add the time each component
+ * spends in its own update() and render(), excluding its children. These
+ * are totalled per component class.
+ */
+public final class Profiler {
+    public enum Metric {
+        FRAME, UPDATE, RENDER, SWAP, POLL, GPU, DRAW_CALLS;
+
+        public boolean isTime() { return this != DRAW_CALLS; }
+    }
+    public static final class Summary {
+        public final Metric metric;
+        public final int count;
+        public final double mean, p50, p90, p99, max;
+
+        private Summary(Metric metric, long[] sorted, int count) {
+            this.metric = metric;
+            this.count  = count;
+            if(count == 0) {
+                mean = p50 = p90 = p99 = max = 0;
+                return;
+            }
+            double sum = 0;
+            for(int i=0; i<count; i++) sum += sorted[i];
+            this.mean = scale(sum / count);
+            this.p50  = scale(percentile(sorted, count, 0.50));
+            this.p90  = scale(percentile(sorted, count, 0.90));
+            this.p99  = scale(percentile(sorted, count, 0.99));
+            this.max  = scale(sorted[count-1]);
+        }
+        /** Times are in milliseconds, counts are unscaled */
+        private double scale(double v) {
+            return metric.isTime() ? v * 1e-6 : v;
+        }
+        private static long percentile(long[] sorted, int count, double p) {
+            return sorted[Math.min(count-1, (int)Math.ceil(p * count) - 1)];
+        }
+        @Override public String toString() {
+            return String.format(Locale.ROOT, "%s p50:%.2f p90:%.2f p99:%.2f max:%.2f", metric, p50, p90, p99, max);
+        }
+    }
+    public static final class ComponentTiming {
+        public final String name;
+        volatile long updateNsecs, renderNsecs;
+        volatile long updates, renders;
+
+        private ComponentTiming(String name) {
+            this.name = name;
+        }
+        public long getUpdateNsecs() { return updateNsecs; }
+        public long getRenderNsecs() { return renderNsecs; }
+        public long getUpdates() { return updates; }
+        public long getRenders() { return renders; }
+        public long getTotalNsecs() { return updateNsecs + renderNsecs; }
+    }
+    //====================================================================================
+    private static final int FRAME_NUMBER = Metric.values().length;
+
+    private final FrameRing ring;
+    private final long[] current = new long[FRAME_NUMBER+1];
+    private final Map<Class<?>, ComponentTiming> components = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity Number of frames to keep.
+     */
+    public Profiler(int capacity) {
+        this.ring = new FrameRing(capacity, current.length);
+    }
+    public int getCapacity() {
+        return ring.getCapacity();
+    }
+    //====================================================================================
+    // Render thread
+    //====================================================================================
+    public void set(Metric m, long value) {
+        current[m.ordinal()] = value;
+    }
+    public void add(Metric m, long value) {
+        current[m.ordinal()] += value;
+    }
+    public void endFrame(long frameNumber) {
+        current[FRAME_NUMBER] = frameNumber;
+        ring.write(current);
+        Arrays.fill(current, 0);
+    }
+    public void addUpdate(UIComponent c, long nsecs) {
+        var t = timing(c);
+        t.updateNsecs += nsecs;
+        t.updates++;
+    }
+    public void addRender(UIComponent c, long nsecs) {
+        var t = timing(c);
+        t.renderNsecs += nsecs;
+        t.renders++;
+    }
+    public void resetComponents() {
+        components.clear();
+    }
+    //====================================================================================
+    // Any thread
+    //====================================================================================
+    public Summary summary(Metric m) {
+        return summary(m, snapshot());
+    }
+    /** Component classes sorted by total time, most expensive first. */
+    public List<ComponentTiming> getComponentTimings() {
+        var list = new ArrayList<>(components.values());
+        list.sort(Comparator.comparingLong(ComponentTiming::getTotalNsecs).reversed());
+        return list;
+    }
+    public String toJson() {
+        var rows = snapshot();
+        var sb   = new StringBuilder();
+        sb.append("{\n  \"frames\": ").append(rows.length).append(",\n");
+
+        // Summary times are in milliseconds, sample times are in nanoseconds
+        sb.append("  \"summary\": {\n");
+        var metrics = Metric.values();
+        for(int i=0; i<metrics.length; i++) {
+            var s = summary(metrics[i], rows);
+            sb.append(String.format(Locale.ROOT,
+                "    \"%s\": {\"mean\": %.4f, \"p50\": %.4f, \"p90\": %.4f, \"p99\": %.4f, \"max\": %.4f}%s\n",
+                metrics[i].name().toLowerCase(), s.mean, s.p50, s.p90, s.p99, s.max, i<metrics.length-1 ? "," : ""));
+        }
+        sb.append("  },\n");
+
+        sb.append("  \"components\": [\n");
+        var timings = getComponentTimings();
+        for(int i=0; i<timings.size(); i++) {
+            var t = timings.get(i);
+            sb.append(String.format(Locale.ROOT,
+                "    {\"name\": \"%s\", \"updateMs\": %.4f, \"updates\": %d, \"renderMs\": %.4f, \"renders\": %d}%s\n",
+                t.name, t.updateNsecs*1e-6, t.updates, t.renderNsecs*1e-6, t.renders, i<timings.size()-1 ? "," : ""));
+        }
+        sb.append("  ],\n");
+
+        sb.append("  \"samples\": [\n");
+        for(int i=0; i<rows.length; i++) {
+            var r = rows[i];
+            sb.append("    {\"frame\": ").append(r[FRAME_NUMBER]);
+            for(var m : metrics) {
+                sb.append(", \"").append(name(m)).append("\": ").append(r[m.ordinal()]);
+            }
+            sb.append(i<rows.length-1 ? "},\n" : "}\n");
+        }
+        sb.append("  ]\n}\n");
+        return sb.toString();
+    }
+    public void dumpJson(String filename) {
+        try{
+            Files.write(Paths.get(filename), toJson().getBytes(StandardCharsets.UTF_8));
+        }catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    //====================================================================================
+    private ComponentTiming timing(UIComponent c) {
+        return components.computeIfAbsent(c.getClass(), k -> new ComponentTiming(k.getSimpleName().isEmpty() ? k.getName() : k.getSimpleName()));
+    }
+    private Summary summary(Metric m, long[][] rows) {
+        var values = new long[rows.length];
+        for(int i=0; i<rows.length; i++) {
+            values[i] = rows[i][m.ordinal()];
+        }
+        Arrays.sort(values);
+        return new Summary(m, values, values.length);
+    }
+    private long[][] snapshot() {
+        var rows = new long[ring.getCapacity()][current.length];
+        int n    = ring.snapshot(rows);
+        return Arrays.copyOf(rows, n);
+    }
+    /** Times in the samples are nanoseconds */
+    private static String name(Metric m) {
+        var s = m.name().toLowerCase();
+        return m.isTime() ? s + "Nsecs" : "drawCalls";
+    }
+}